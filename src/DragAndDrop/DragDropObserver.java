@@ -35,10 +35,9 @@ package DragAndDrop;
 public interface DragDropObserver {
 
     /**
-     * Notifies that a drag-drop was accepted. Note that DragDropObservers must
-     * _not_ unsubscribe themselves from the calling draggable or droppable in
-     * this method or an exception will occur. Instead return false and you will
-     * be unsubscribed.
+     * Notifies that a drag-drop was accepted. To unsubscribe from the calling
+     * draggable or droppable return false (calling its detach method from
+     * here works too).
      * 
      * @param An object that stores information about the drag-drop.
      * @return true to remain subscribed to the draggable or droppable that sent
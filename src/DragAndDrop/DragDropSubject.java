@@ -20,7 +20,7 @@
 */
 package DragAndDrop;
 
-import java.util.HashSet;
+import observer.ObserverList;
 
 /**
  * Superclass for Draggable and Droppable. Implements the Observer interface
@@ -33,8 +33,15 @@ public class DragDropSubject {
     /**
      * The observers currently subscribed to this subject.
      */
-    private HashSet<DragDropObserver> observers =
-            new HashSet<DragDropObserver>();
+    private final ObserverList<DragDropObserver> observers =
+            new ObserverList<DragDropObserver>();
+
+    private static final ObserverList.Notifier<DragDropObserver,DropEvent>
+            NOTIFY = new ObserverList.Notifier<DragDropObserver,DropEvent>() {
+                public boolean notify(DragDropObserver observer, DropEvent de) {
+                    return observer.notify(de);
+                }
+            };
 
     /**
      * Subscribe a new observer.
@@ -56,14 +63,6 @@ public class DragDropSubject {
      * it will be unsubscribed from the subject.
      */
     public void notify_observers(DropEvent de) {
-        HashSet<DragDropObserver> to_detach = new HashSet<DragDropObserver>();
-        for (DragDropObserver observer : observers) {
-            if (!observer.notify(de)) {
-                to_detach.add(observer);
-            }
-        }
-        for (DragDropObserver observer : to_detach) {
-            detach(observer);
-        }
+        observers.notify(NOTIFY, de);
     }
 }
\ No newline at end of file
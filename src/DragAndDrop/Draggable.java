@@ -32,6 +32,7 @@ import edu.umd.cs.piccolo.event.PInputEvent;
 import edu.umd.cs.piccolo.util.PPickPath;
 import java.awt.geom.Point2D;
 import storymaps.Messager;
+import storymaps.Topic;
 
 /**
  * A wrapper class for PNode that makes a PNode 'draggable' (i.e. it can be
@@ -106,7 +107,7 @@ public class Draggable extends DragDropSubject {
                     }
                     node = node.getParent();
                 }
-                Messager.getMessager().send("drag started", getDraggedNode());
+                Messager.getMessager().send(Topic.DRAG_STARTED, getDraggedNode(), getDraggedNode());
                 isDragging = true;
             }
             @Override
@@ -0,0 +1,139 @@
+
+/* 
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package DragAndDrop;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import observer.ConcreteObservable;
+import observer.Observer;
+
+/**
+ * Measures the bytes allocated and the time taken per notification by
+ * DragDropSubject and ConcreteObservable, and by the HashSet-based
+ * notification DragDropSubject used to do.
+ * 
+ * Allocation is read from the JVM's per-thread allocation counter, which
+ * HotSpot provides through com.sun.management.ThreadMXBean.
+ * 
+ * Usage: ObserverBenchmark [observers]
+ * 
+ * @author seanh
+ */
+public class ObserverBenchmark {
+
+    private static final int NOTIFICATIONS = 1000000;
+
+    private static int notified = 0;
+
+    private static final DragDropObserver OBSERVER = new DragDropObserver() {
+        public boolean notify(DropEvent de) {
+            notified++;
+            return true;
+        }
+    };
+
+    /**
+     * The old DragDropSubject.notify_observers.
+     */
+    private static void notifyHashSet(HashSet<DragDropObserver> observers,
+            DropEvent de) {
+        HashSet<DragDropObserver> to_detach = new HashSet<DragDropObserver>();
+        for (DragDropObserver observer : observers) {
+            if (!observer.notify(de)) {
+                to_detach.add(observer);
+            }
+        }
+        for (DragDropObserver observer : to_detach) {
+            observers.remove(observer);
+        }
+    }
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        // Run everything once before measuring it, to give the JIT a chance
+        // to compile it.
+        run(n, false);
+        run(n, true);
+    }
+
+    private static void run(int n, boolean print) {
+        DropEvent de = new DropEvent(null, null, null);
+        HashSet<DragDropObserver> set = new HashSet<DragDropObserver>();
+        DragDropSubject subject = new DragDropSubject();
+        ConcreteObservable<Object> observable = new ConcreteObservable<Object>();
+        for (int i = 0; i < n; i++) {
+            // Distinct observers, so that the set and lists hold n each.
+            DragDropObserver o = new DragDropObserver() {
+                public boolean notify(DropEvent de) {
+                    return OBSERVER.notify(de);
+                }
+            };
+            set.add(o);
+            subject.attach(o);
+            observable.addObserver(new Observer<Object>() {
+                public void update(Object arg) {
+                    notified++;
+                }
+            });
+        }
+
+        long bytes = allocated();
+        long start = System.nanoTime();
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            notifyHashSet(set, de);
+        }
+        long hashSetNanos = System.nanoTime() - start;
+        long hashSetBytes = allocated() - bytes;
+
+        bytes = allocated();
+        start = System.nanoTime();
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            subject.notify_observers(de);
+        }
+        long subjectNanos = System.nanoTime() - start;
+        long subjectBytes = allocated() - bytes;
+
+        bytes = allocated();
+        start = System.nanoTime();
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            observable.notify(de);
+        }
+        long observableNanos = System.nanoTime() - start;
+        long observableBytes = allocated() - bytes;
+
+        if (print) {
+            System.out.println(n + " observers (" + notified + " notified):");
+            print("HashSet (old DragDropSubject)", hashSetBytes, hashSetNanos);
+            print("DragDropSubject", subjectBytes, subjectNanos);
+            print("ConcreteObservable", observableBytes, observableNanos);
+        }
+    }
+
+    private static void print(String name, long bytes, long nanos) {
+        System.out.println(String.format("  %-30s %6.1f bytes, %5d ns per notification",
+                name, (double) bytes / NOTIFICATIONS, nanos / NOTIFICATIONS));
+    }
+
+    private static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -19,24 +19,28 @@
 */
 package observer;
 
-import java.util.Set;
-import java.util.HashSet;
-
 public class ConcreteObservable<T> implements Observable<T> {
 
-    private Set<Observer<T>> observers = new HashSet<Observer<T>>();
+    private final ObserverList<Observer<T>> observers =
+            new ObserverList<Observer<T>>();
+
+    private final ObserverList.Notifier<Observer<T>,T> update =
+            new ObserverList.Notifier<Observer<T>,T>() {
+                public boolean notify(Observer<T> o, T arg) {
+                    o.update(arg);
+                    return true;
+                }
+            };
 
-    public void addObserver(Observer o) {
+    public void addObserver(Observer<T> o) {
         observers.add(o);
     }
     
-    public void removeObserver(Observer o) {
+    public void removeObserver(Observer<T> o) {
         observers.remove(o);
     }
     
     public void notify(T arg) {
-        for (Observer<T> o : observers) {
-            o.update(arg);
-        }
+        observers.notify(update, arg);
     }
 }
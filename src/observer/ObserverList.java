@@ -0,0 +1,118 @@
+
+/* 
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package observer;
+
+import java.util.Arrays;
+
+/**
+ * A list of observers that can be notified without allocating anything and
+ * without locking, and that observers can be added to or removed from while
+ * it is being notified, from any thread.
+ * 
+ * Adding or removing an observer replaces the list's array of observers with
+ * a changed copy. A notification walks the array it started with, so an
+ * observer that is removed during a notification may still be notified that
+ * once, and one that is added isn't notified until the next notification.
+ * Observers are compared by identity and each is in the list at most once.
+ * 
+ * @author seanh
+ */
+public final class ObserverList<T> {
+
+    /**
+     * Tells one observer about something. Notifiers are usually created once
+     * and kept in a field, so that notifying doesn't allocate one.
+     */
+    public interface Notifier<T,A> {
+
+        /**
+         * Notify the observer, passing it arg. Return false to remove the
+         * observer from the list once the notification is finished.
+         */
+        public boolean notify(T observer, A arg);
+    }
+
+    private static final Object[] NONE = new Object[0];
+
+    private volatile Object[] observers = NONE;
+
+    /**
+     * Add an observer, unless it is already in the list.
+     */
+    public synchronized void add(T o) {
+        Object[] old = observers;
+        if (indexOf(old, o) != -1) {
+            return;
+        }
+        Object[] added = Arrays.copyOf(old, old.length + 1);
+        added[old.length] = o;
+        observers = added;
+    }
+
+    /**
+     * Remove an observer, if it's in the list.
+     */
+    public synchronized void remove(T o) {
+        Object[] old = observers;
+        int i = indexOf(old, o);
+        if (i == -1) {
+            return;
+        }
+        if (old.length == 1) {
+            observers = NONE;
+            return;
+        }
+        Object[] removed = new Object[old.length - 1];
+        System.arraycopy(old, 0, removed, 0, i);
+        System.arraycopy(old, i + 1, removed, i, old.length - i - 1);
+        observers = removed;
+    }
+
+    public int size() {
+        return observers.length;
+    }
+
+    /**
+     * Notify every observer in the list, in the order they were added,
+     * removing those whose notifier returns false. The removals don't affect
+     * the notification in progress, which carries on over the observers that
+     * were in the list when it started.
+     */
+    @SuppressWarnings("unchecked")
+    public <A> void notify(Notifier<? super T,? super A> notifier, A arg) {
+        Object[] snapshot = observers;
+        for (int i = 0; i < snapshot.length; i++) {
+            T o = (T) snapshot[i];
+            if (!notifier.notify(o, arg)) {
+                remove(o);
+            }
+        }
+    }
+
+    private static int indexOf(Object[] array, Object o) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == o) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -22,6 +22,9 @@ package storymaps;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.TimerTask;
 import java.util.Timer;
 import javax.xml.datatype.DatatypeConfigurationException;
@@ -33,6 +36,8 @@ import javax.swing.*;
 import javax.swing.filechooser.FileFilter;
 import java.awt.*;
 import java.awt.event.*;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import edu.umd.cs.piccolo.*;
 import edu.umd.cs.piccolo.nodes.*;
 import edu.umd.cs.piccolo.event.*;
@@ -94,6 +99,15 @@ public class Application implements Receiver, Originator {
      * The directory that autosave files will be saved to.
      */
     private File autosavedir;
+    /**
+     * The journal that autosaves are appended to.
+     */
+    private StoryJournal journal;
+    /**
+     * Captures autosaves on the event dispatch thread and writes them to the
+     * journal in the background.
+     */
+    private Autosaver autosaver;
 
     final private PreviewDialog previewDialog;
 
@@ -106,16 +120,26 @@ public class Application implements Receiver, Originator {
     private Date date_story_closed;
     private Date date_editor_opened;
     private Date date_editor_closed;
+
     /**
-     * The singleton instance of this class.
+     * Logs how long each phase of starting up takes.
      */
-    private static final Application INSTANCE = new Application();
+    private final StartupTimeline startup = new StartupTimeline();
+
+    /**
+     * Holds the singleton instance of this class. The instance, and with it
+     * the whole GUI, is only constructed the first time getInstance is called
+     * so that the command-line modes of main don't construct it.
+     */
+    private static final class InstanceHolder {
+        static final Application INSTANCE = new Application();
+    }
 
     /**
      * Get the singleton instance of this class.
      */
     static Application getInstance() {
-        return INSTANCE;
+        return InstanceHolder.INSTANCE;
     }
 
     /**
@@ -132,12 +156,51 @@ public class Application implements Receiver, Originator {
         if (args.length > 0 && args[0].equals("print_functions")) {
             // If the print_functions command-line arg is given output the list
             // of functions as an HTML file instead of running the application.
-            // FIXME: the application still gets loaded, need to move
-            // initialisation code from above into this method.
             export_functions_as_html("functions.html");
             System.exit(0);
-
+        } else if (args.length > 0 && args[0].equals("convert")) {
+            // If the convert command-line arg is given convert the story files
+            // named by the remaining args from the old Java-serialized format
+            // to the current format instead of running the application.
+            int status = 0;
+            for (int i = 1; i < args.length; i++) {
+                try {
+                    if (StoryMapFormat.convertLegacy(new File(args[i]))) {
+                        System.out.println("Converted " + args[i]);
+                    } else {
+                        System.out.println("Already converted " + args[i]);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Could not convert " + args[i] + ": " + e);
+                    status = 1;
+                } catch (MementoException e) {
+                    System.err.println("Could not convert " + args[i] + ": " + e);
+                    status = 1;
+                }
+            }
+            System.exit(status);
+        } else if (args.length > 0 && args[0].equals("convert_html")) {
+            // If the convert_html command-line arg is given render every story
+            // file under the directory named by the second arg to HTML in the
+            // directory named by the third, without a display, instead of
+            // running the application.
+            if (args.length != 3) {
+                System.err.println("Usage: convert_html input_directory output_directory");
+                System.exit(2);
+            }
+            System.setProperty("java.awt.headless", "true");
+            int status = 0;
+            try {
+                if (new BatchConverter(new File(args[1]), new File(args[2])).run() > 0) {
+                    status = 1;
+                }
+            } catch (IOException e) {
+                System.err.println("Could not convert " + args[1] + ": " + e);
+                status = 1;
+            }
+            System.exit(status);
         }
+        getInstance();
     }
 
     /**
@@ -146,8 +209,12 @@ public class Application implements Receiver, Originator {
      */
     private static void export_functions_as_html(String path) {
         try {
-            String html = new TemplateHandler().renderFunctions();
-            Util.writeTextToFile(html, path);
+            Writer out = Util.openTextFile(path);
+            try {
+                TemplateHandler.getShared().renderFunctions(out);
+            } finally {
+                out.close();
+            }
         } catch (IOException e) {
             System.out.println(e);
         } catch (TemplateHandlerException e) {
@@ -159,6 +226,13 @@ public class Application implements Receiver, Originator {
      * Construct and start the application.
      */
     private Application() {
+        // Parse the function catalog, then start decoding the function images
+        // on background threads so that they are decoded while the frame is
+        // being constructed.
+        Function.getFunctions();
+        startup.phase("catalog parse");
+        Function.preloadImages();
+
         // Create the autosave directory for this session if it does not already
         // exist.
         File userhome = new JFileChooser().getFileSystemView().getDefaultDirectory();
@@ -187,6 +261,9 @@ public class Application implements Receiver, Originator {
             Logger.getLogger(getClass().getName()).warning(msg);
         }
 
+        journal = new StoryJournal(new File(autosavedir, "autosave.storyjournal"));
+        autosaver = new Autosaver(this, journal);
+
         // Initialise the file choosers for saving, opening and exporting
         // stories.
         fc_saveopen = new JFileChooser(storymapsdir);
@@ -194,30 +271,46 @@ public class Application implements Receiver, Originator {
 
             @Override
             public boolean accept(File f) {
-                return f.getAbsolutePath().endsWith(".storymap");
+                return f.getAbsolutePath().endsWith(".storymap")
+                        || f.getAbsolutePath().endsWith(".storyjournal");
             }
 
             @Override
             public String getDescription() {
-                return "Storymap files";
+                return "Storymap files and autosave journals";
             }
         });
 
-        // Start a task that autosaves every 60 seconds.
+        // Start a task that requests an autosave every 60 seconds. The state
+        // is captured on the event dispatch thread and written to disk on the
+        // autosaver's own thread, not on this timer thread.
         TimerTask autoSave = new TimerTask() {
 
             public void run() {
-                autosave();
+                autosaver.request();
             }
         };
         Timer timer = new Timer();
         timer.schedule(autoSave, 60000, 60000);
 
+        // And one that writes the Messager's metrics to the session's
+        // autosave dir every five minutes, to see which receivers are slow.
+        timer.schedule(new TimerTask() {
+
+            public void run() {
+                dumpMessagerMetrics();
+            }
+        }, 300000, 300000);
+
         // Subscribe to the messages sent by StoryEditor when it is collapsed
         // and uncollapsed and when the sort button is collapsed.
-        Messager.getMessager().accept("Editor uncollapsed", this, null);
-        Messager.getMessager().accept("Editor collapsed", this, null);
-        Messager.getMessager().accept("sort", this, null);
+        Messager.getMessager().accept(Topic.EDITOR_UNCOLLAPSED, this, null);
+        Messager.getMessager().accept(Topic.EDITOR_COLLAPSED, this, null);
+        Messager.getMessager().accept(Topic.SORT, this, null);
+        // Reposition the camera once after a burst of resizes and editor
+        // collapses, when Swing has finished resizing the PCanvas.
+        Messager.getMessager().accept(Topic.REPOSITION_CAMERA, this, null,
+                Delivery.coalesced(100));
 
         // Record the time that the application was opened.
         updateStoryOpenedDate();
@@ -251,7 +344,9 @@ public class Application implements Receiver, Originator {
         frame.addWindowListener(new WindowListener() {
 
             public void windowClosing(WindowEvent arg0) {
-                autosave();
+                autosaver.flush(10000);
+                Logger.getLogger(getClass().getName()).info(autosaver.toString());
+                dumpMessagerMetrics();
                 System.exit(0);
             }
 
@@ -281,7 +376,18 @@ public class Application implements Receiver, Originator {
 
         editor = new StoryEditor(frame);
 
-        canvas = new PCanvas();
+        canvas = new PCanvas() {
+            private boolean painted = false;
+
+            @Override
+            public void paintComponent(Graphics g) {
+                super.paintComponent(g);
+                if (!painted) {
+                    painted = true;
+                    startup.phase("first paint");
+                }
+            }
+        };
 
         canvas.setPreferredSize(new Dimension(1024, 768));
         canvas.setBackground(Color.BLACK);
@@ -292,7 +398,7 @@ public class Application implements Receiver, Originator {
             // This method is called after the component's size changes
 
             public void componentResized(ComponentEvent evt) {
-                repositionCamera();
+                Messager.getMessager().send(Topic.REPOSITION_CAMERA, null);
             }
 
             public void componentMoved(ComponentEvent arg0) {
@@ -388,6 +494,10 @@ public class Application implements Receiver, Originator {
      */
     private void initializePCanvas() {
 
+        startup.phase("frame build");
+        Function.awaitImages();
+        startup.phase("image decode");
+
         canvas.getLayer().addChild(home);
 
         double width = canvas.getBounds().getWidth();
@@ -401,6 +511,20 @@ public class Application implements Receiver, Originator {
         Color grey = new Color(0.66f,0.66f,0.68f);
         map = new StoryMap(editor, width, height-cards.getNode().getHeight(), 0, cards.getNode().getHeight(), grey);
         home.addChild(map.getNode());
+        startup.phase("scene build");
+
+        // Keep the story map told which part of it the camera can see, so
+        // it can leave the rest out of the scene graph.
+        PropertyChangeListener viewListener = new PropertyChangeListener() {
+            public void propertyChange(PropertyChangeEvent evt) {
+                updateMapView();
+            }
+        };
+        canvas.getCamera().addPropertyChangeListener(
+                PCamera.PROPERTY_VIEW_TRANSFORM, viewListener);
+        canvas.getCamera().addPropertyChangeListener(
+                PNode.PROPERTY_BOUNDS, viewListener);
+        updateMapView();
         
         //writeStory = new WriteStoryButton();
         //second_home.addChild(writeStory);
@@ -424,7 +548,14 @@ public class Application implements Receiver, Originator {
         // Listen for 'clicked' messages from story cards (the receive method
         // will be called), this is how we make RMB zoom in on cards.
         Messager m = Messager.getMessager();
-        m.accept("StoryCard double-clicked", this, null);
+        m.accept(Topic.STORYCARD_DOUBLE_CLICKED, this, null);
+    }
+
+    /**
+     * Tell the story map which part of the scene the camera is looking at.
+     */
+    private void updateMapView() {
+        map.setViewBounds(canvas.getCamera().getViewBounds());
     }
 
     private void zoomToHome() {
@@ -440,49 +571,35 @@ public class Application implements Receiver, Originator {
     /**
      * Receive messages from the global singleton Messager object.
      */
-    public void receive(String name, Object receiver_arg, Object sender_arg) {
-        if (name.equals("StoryCard double-clicked")) {
+    public void receive(Topic topic, Object receiver_arg, Object sender_arg) {
+        if (topic == Topic.STORYCARD_DOUBLE_CLICKED) {
             /*StoryCardBase card = (StoryCardBase) sender_arg;
             PNode node = card.getNode();
             StoryCardBase prev = (StoryCardBase) target.getAttribute("StoryCardBase");
             target = node;
             repositionCamera(750);*/
-        } else if (name.equals("Editor uncollapsed")) {
+        } else if (topic == Topic.EDITOR_UNCOLLAPSED) {
             // Add cards back and reposition camera.
             cards.getNode().removeFromParent();
             target = home; // Just to make sure.
-            // Since swing is about to resize the PCanvas we don't want
-            // to reposition the camera immediately. Instead schedule it to
-            // happen one tenth of a second from now.
-            TimerTask zoom = new TimerTask() {
-
-                public void run() {
-                    repositionCamera(750);
-                }
-            };
-            Timer timer = new Timer();
-            timer.schedule(zoom, 100);
+            // Swing is about to resize the PCanvas, so don't reposition the
+            // camera until it has.
+            Messager.getMessager().send(Topic.REPOSITION_CAMERA, null);
             // Record what time the editor was opened.
             updateEditorOpenedDate();
-        } else if (name.equals("Editor collapsed")) {
+        } else if (topic == Topic.EDITOR_COLLAPSED) {
             // Remove cards from scene graph and reposition camera
             home.addChild(cards.getNode());
             target = home; // Just to make sure.
-            // Since swing is about to resize the PCanvas we don't want
-            // to reposition the camera immediately. Instead schedule it to
-            // happen one tenth of a second from now.
-            TimerTask zoom = new TimerTask() {
-
-                public void run() {
-                    repositionCamera(750);
-                }
-            };
-            Timer timer = new Timer();
-            timer.schedule(zoom, 100);
+            // Swing is about to resize the PCanvas, so don't reposition the
+            // camera until it has.
+            Messager.getMessager().send(Topic.REPOSITION_CAMERA, null);
             // Record the duration of time that the editor was open for.
             updateEditorClosedDate();
-        } else if (name.equals("sort")) {
+        } else if (topic == Topic.SORT) {
             map.sort();
+        } else if (topic == Topic.REPOSITION_CAMERA) {
+            repositionCamera(750);
         }
     }
 
@@ -526,10 +643,18 @@ public class Application implements Receiver, Originator {
     private void open() {
         int returnVal = fc_saveopen.showOpenDialog(frame);
         if (returnVal == JFileChooser.APPROVE_OPTION) {
-            String filename = fc_saveopen.getSelectedFile().getAbsolutePath();
+            File file = fc_saveopen.getSelectedFile();
+            String filename = file.getAbsolutePath();
             try {
-                Object m = Util.deserializeObjectFromFile(filename);
-                restoreFromMemento(m);
+                if (filename.endsWith(".storyjournal")) {
+                    restoreFromState(StoryJournal.replay(file));
+                } else if (StoryMapFormat.isStoryMapFormat(file)) {
+                    restoreFromState(StoryMapFormat.read(file));
+                } else {
+                    // A story saved by an older version of StoryMaps.
+                    Object m = Util.deserializeObjectFromFile(filename);
+                    restoreFromMemento(m);
+                }
             } catch (IOException e) {
                 // FIXME: display a friendly message to the user via the GUI,
                 // print the exception itself to stderr and log it to an errors
@@ -557,26 +682,6 @@ public class Application implements Receiver, Originator {
         }
     }
 
-    /**
-     * Save the current state of the application in the autosave dir with a
-     * filename constructed from the current system time.
-     */
-    private void autosave() {
-        String now = Util.nowStr();
-        File save = new File(autosavedir, now + ".storymap");
-        String filename = save.getAbsolutePath();
-        Memento memento = createMemento();
-        try {
-            Util.serializeObjectToFile(filename, memento);
-        } catch (IOException e) {
-            // FIXME: display a friendly message to the user via the GUI, print
-            // the exception itself to stderr and append it to an errors log
-            // file.
-            System.out.println("Application.autosave(): IOError when writing to path: " + filename);
-            System.out.println(e);
-        }
-    }
-
     /**
      * This method is called when the Save button is pressed.
      */
@@ -588,7 +693,7 @@ public class Application implements Receiver, Originator {
                 if (!path.endsWith(".storymap")) {
                     path = path + ".storymap";
                 }
-                Util.serializeObjectToFile(path, createMemento());
+                StoryMapFormat.write(new File(path), captureState());
             } catch (IOException e) {
                 // FIXME: display a more friendly message to the user via the
                 // GUI, print the exception itself to stderr and append it to an
@@ -678,6 +783,8 @@ public class Application implements Receiver, Originator {
     // Implement Originator
     // --------------------
     private static final class ApplicationMemento implements Memento {
+        private static final long serialVersionUID = 6426599665156809028L;
+
         // Don't need to defensively copy anything because StoryMapMemento and
         // StoryCardsMemento should both be immutable.
 
@@ -749,18 +856,18 @@ public class Application implements Receiver, Originator {
         }
         ApplicationMemento am = (ApplicationMemento) m;
 
-        // FIXME: is this enough to really dispose of cards? Might be a memory
-        // leak here.
+        // The Messager only holds the old cards and map weakly, so once they
+        // are out of the scene graph they can be garbage collected.
         cards.getNode().removeFromParent();
         cards = StoryCards.newInstanceFromMemento(am.getStoryCardsMemento());
         home.addChild(cards.getNode());
 
-        // FIXME: is this enough to really dispose of map? Might be a memory
-        // leak here.
-        map.getNode().removeFromParent();
+        discardMap();
         map = StoryMap.newInstanceFromMemento(am.getStoryMapMemento());
         home.addChild(map.getNode());
+        updateMapView();
         target = home;
+        logSubscriberCounts();
 
         // Restore the durations and reset the app opened date.
         duration_story_open = am.getDurationAppOpen();
@@ -770,4 +877,154 @@ public class Application implements Receiver, Originator {
             updateEditorOpenedDate();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Take the story map out of the scene graph and unsubscribe it from the
+     * Messager straight away, so it doesn't go on receiving messages (e.g.
+     * sorting itself) until it is garbage collected.
+     */
+    private void discardMap() {
+        map.getNode().removeFromParent();
+        Messager.getMessager().ignoreAll(map);
+    }
+
+    /**
+     * Write the Messager's message counts and handling times to a file in
+     * the autosave dir, replacing the previous dump.
+     */
+    private void dumpMessagerMetrics() {
+        File file = new File(autosavedir, "messager_metrics.txt");
+        try {
+            Messager.getMessager().getMetrics().dump(file);
+        } catch (IOException e) {
+            Logger.getLogger(getClass().getName()).warning("IOException when writing Messager metrics to path: " + file + " " + e);
+        }
+    }
+
+    /**
+     * Log the number of receivers subscribed to each topic, which should
+     * stay the same from one restored story to the next.
+     */
+    private void logSubscriberCounts() {
+        Logger.getLogger(getClass().getName()).info("Message subscribers: "
+                + Messager.getMessager().getSubscriberCounts());
+    }
+
+    /**
+     * Return a StoryState describing the current story, for the autosave
+     * journal. Like createMemento this logs and updates the story and editor
+     * open durations. Must be called on the event dispatch thread.
+     */
+    StoryState captureState() {
+        List<StoryState.Slot> deck = new ArrayList<StoryState.Slot>();
+        for (DisabledStoryCard dsc : cards.getDisabledStoryCards()) {
+            StoryCard sc = dsc.getStoryCard();
+            String text = (sc == null) ? null : sc.getEditor().getText();
+            deck.add(new StoryState.Slot(dsc.getFunction().getNumber(), text));
+        }
+        List<StoryState.Slot> slots = new ArrayList<StoryState.Slot>();
+        for (Placeholder p : map.getPlaceholders()) {
+            StoryCard sc = p.getStoryCard();
+            if (sc == null) {
+                slots.add(new StoryState.Slot(-1, null));
+            } else {
+                slots.add(new StoryState.Slot(sc.getFunction().getNumber(),
+                        sc.getEditor().getText()));
+            }
+        }
+        updateStoryClosedDate();
+        updateStoryOpenedDate();
+        if (!editor.isCollapsed()) {
+            updateEditorClosedDate();
+            updateEditorOpenedDate();
+        }
+        return new StoryState(editor.getTitle(), deck, slots,
+                duration_story_open.toString(),
+                duration_editor_open.toString());
+    }
+
+    /**
+     * Restore the state of the singleton Application instance to the given
+     * StoryState, e.g. one replayed from an autosave journal.
+     *
+     * @throws storymaps.MementoException if the state refers to a function
+     * that doesn't exist.
+     */
+    void restoreFromState(StoryState state) throws MementoException {
+        List<DisabledStoryCard> disabledStoryCards = new ArrayList<DisabledStoryCard>();
+        for (StoryState.Slot slot : state.getDeck()) {
+            Function f = functionForSlot(slot);
+            DisabledStoryCard dsc = new DisabledStoryCard(f);
+            if (slot.isTaken()) {
+                dsc.setStoryCard(new StoryCard(f, slot.getText()));
+            }
+            disabledStoryCards.add(dsc);
+        }
+        List<Placeholder> placeholders = new ArrayList<Placeholder>();
+        for (StoryState.Slot slot : state.getMap()) {
+            Placeholder p = new Placeholder();
+            if (slot.isTaken()) {
+                p.setStoryCard(new StoryCard(functionForSlot(slot), slot.getText()));
+            }
+            placeholders.add(p);
+        }
+
+        PNode old = cards.getNode();
+        old.removeFromParent();
+        cards = new StoryCards(old.getWidth(), old.getHeight(),
+                old.getXOffset(), old.getYOffset(), cards.getColor(),
+                disabledStoryCards);
+        home.addChild(cards.getNode());
+
+        old = map.getNode();
+        discardMap();
+        map = new StoryMap(editor, placeholders, old.getWidth(),
+                old.getHeight(), old.getXOffset(), old.getYOffset(),
+                map.getColor());
+        home.addChild(map.getNode());
+        updateMapView();
+        editor.setTitle(state.getTitle());
+        target = home;
+        logSubscriberCounts();
+
+        duration_story_open = datatypeFactory.newDuration(state.getStoryDuration());
+        updateStoryOpenedDate();
+        duration_editor_open = datatypeFactory.newDuration(state.getEditorDuration());
+        if (!editor.isCollapsed()) {
+            updateEditorOpenedDate();
+        }
+    }
+
+    private Function functionForSlot(StoryState.Slot slot)
+            throws MementoException {
+        Function f = Function.forNumber(slot.getFunction());
+        if (f == null) {
+            String detail = "No function with number " + slot.getFunction() + ".";
+            MementoException e = new MementoException(detail);
+            Logger.getLogger(getClass().getName()).throwing("Application", "restoreFromState", e);
+            throw e;
+        }
+        return f;
+    }
+
+    /**
+     * Return the StoryState recorded in an ApplicationMemento, e.g. one read
+     * from a story file saved by an older version of StoryMaps. Doesn't
+     * construct any part of the GUI.
+     */
+    static StoryState stateFromMemento(Object m) throws MementoException {
+        if (!(m instanceof ApplicationMemento)) {
+            String detail = "Wrong type of memento object.";
+            MementoException e = new MementoException(detail);
+            Logger.getLogger(Application.class.getName()).throwing("Application", "stateFromMemento", e);
+            throw e;
+        }
+        ApplicationMemento am = (ApplicationMemento) m;
+        Memento smm = am.getStoryMapMemento();
+        return new StoryState(StoryMap.titleFromMemento(smm),
+                StoryCards.slotsFromMemento(am.getStoryCardsMemento()),
+                StoryMap.slotsFromMemento(smm),
+                am.getDurationAppOpen().toString(),
+                am.getDurationEditorOpen().toString());
+    }
+}
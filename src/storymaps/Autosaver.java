@@ -0,0 +1,216 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+
+/**
+ * Autosaves the story in two stages.
+ *
+ * Stage one runs on the Swing event dispatch thread, where it is safe to read
+ * the scene graph and the text editors, and does nothing but capture a
+ * StoryState. Stage two runs on a dedicated writer thread and appends the
+ * captured state to the StoryJournal, syncing it to disk.
+ *
+ * Captured states are coalesced: if the writer is still busy with a slow disk
+ * when more states are captured, only the latest of them is written. Since
+ * there is only one writer thread two autosaves never overlap.
+ *
+ * @author seanh
+ */
+final class Autosaver {
+
+    /**
+     * Simple running statistics for the time taken by one of the stages.
+     */
+    static final class Latency {
+        private long count = 0;
+        private long totalNanos = 0;
+        private long maxNanos = 0;
+        private long lastNanos = 0;
+
+        synchronized void record(long nanos) {
+            count++;
+            totalNanos += nanos;
+            lastNanos = nanos;
+            if (nanos > maxNanos) {
+                maxNanos = nanos;
+            }
+        }
+
+        synchronized long getCount() { return count; }
+        synchronized long getLastMicros() { return lastNanos / 1000; }
+        synchronized long getMaxMicros() { return maxNanos / 1000; }
+        synchronized long getMeanMicros() {
+            return count == 0 ? 0 : totalNanos / count / 1000;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "n=" + count + " last=" + getLastMicros() + "us mean="
+                    + getMeanMicros() + "us max=" + getMaxMicros() + "us";
+        }
+    }
+
+    private final Application application;
+    private final StoryJournal journal;
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    /**
+     * The most recently captured state that has not been written yet.
+     */
+    private final AtomicReference<StoryState> pending =
+            new AtomicReference<StoryState>();
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Autosave writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final Latency captureLatency = new Latency();
+    private final Latency writeLatency = new Latency();
+
+    /**
+     * The number of captured states that were replaced by a later one before
+     * the writer got to them.
+     */
+    private long coalesced = 0;
+
+    Autosaver(Application application, StoryJournal journal) {
+        this.application = application;
+        this.journal = journal;
+    }
+
+    /**
+     * Request an autosave. May be called from any thread, returns
+     * immediately.
+     */
+    void request() {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                capture();
+            }
+        });
+    }
+
+    /**
+     * Capture the current state and write it, waiting (for at most the given
+     * number of milliseconds) until it and any earlier pending state is on
+     * disk. Must be called on the event dispatch thread, e.g. when the
+     * application window is closing.
+     */
+    void flush(long timeout) {
+        capture();
+        try {
+            writer.submit(new Runnable() {
+                public void run() {
+                    // Nothing to do, capture() already queued the write. This
+                    // just waits for the writer to get past it.
+                }
+            }).get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING, "Exception when flushing autosave.", e);
+        } catch (TimeoutException e) {
+            logger.warning("Timed out waiting for the final autosave to be written.");
+        }
+    }
+
+    /**
+     * Stage one: capture a StoryState on the event dispatch thread and hand
+     * it to the writer.
+     */
+    private void capture() {
+        long start = System.nanoTime();
+        StoryState state = application.captureState();
+        captureLatency.record(System.nanoTime() - start);
+        if (pending.getAndSet(state) == null) {
+            writer.execute(new Runnable() {
+                public void run() {
+                    write();
+                }
+            });
+        } else {
+            synchronized (this) {
+                coalesced++;
+            }
+        }
+    }
+
+    /**
+     * Stage two: write the latest pending state to the journal, on the writer
+     * thread.
+     */
+    private void write() {
+        StoryState state = pending.getAndSet(null);
+        if (state == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            journal.append(state);
+        } catch (IOException e) {
+            // FIXME: display a friendly message to the user via the GUI.
+            logger.log(Level.WARNING, "IOException when writing autosave to path: " + journal.getFile(), e);
+        }
+        writeLatency.record(System.nanoTime() - start);
+        logger.fine("Autosaved. Capture: " + captureLatency + ". Write: " + writeLatency + ".");
+    }
+
+    /**
+     * Return statistics for the time spent capturing states on the event
+     * dispatch thread.
+     */
+    Latency getCaptureLatency() {
+        return captureLatency;
+    }
+
+    /**
+     * Return statistics for the time spent writing states to disk.
+     */
+    Latency getWriteLatency() {
+        return writeLatency;
+    }
+
+    synchronized long getCoalescedCount() {
+        return coalesced;
+    }
+
+    @Override
+    public String toString() {
+        return "Autosaver: capture " + captureLatency + ", write " + writeLatency
+                + ", coalesced " + getCoalescedCount();
+    }
+}
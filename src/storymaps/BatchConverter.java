@@ -0,0 +1,185 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Converts a directory tree of story files to HTML without a display, e.g. a
+ * whole term's autosaved_storymaps.
+ *
+ * Every .storymap file (in either format) and .storyjournal autosave journal
+ * under the input directory is rendered to an .html file at the same place
+ * under the output directory. The story card images are written once, to a
+ * card_images directory at the top of the output directory, and shared by
+ * every story. Stories are converted in parallel, one per core, and only
+ * story files are read, so no Swing or Piccolo components are constructed.
+ *
+ * @author seanh
+ */
+final class BatchConverter {
+
+    private static final String IMAGES_DIR = "card_images";
+
+    private final File in;
+    private final File out;
+
+    BatchConverter(File in, File out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * The result of converting one story file.
+     */
+    private static final class Result {
+        private final long bytesRead;
+        private final int cards;
+
+        Result(long bytesRead, int cards) {
+            this.bytesRead = bytesRead;
+            this.cards = cards;
+        }
+    }
+
+    /**
+     * Convert every story file under the input directory, print the
+     * throughput to standard output and return the number of files that
+     * couldn't be converted.
+     */
+    int run() throws IOException {
+        long start = System.nanoTime();
+        List<File> files = new ArrayList<File>();
+        findStoryFiles(in, files);
+        File imagesDir = new File(out, IMAGES_DIR);
+        if (!imagesDir.isDirectory() && !imagesDir.mkdirs()) {
+            throw new IOException("Could not create " + imagesDir);
+        }
+        CardImageExporter.getShared().export(Function.getFunctions(),
+                imagesDir, 1, null);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService workers = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Batch converter");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        List<Future<Result>> results = new ArrayList<Future<Result>>();
+        for (final File file : files) {
+            results.add(workers.submit(new Callable<Result>() {
+                public Result call() throws Exception {
+                    return convert(file);
+                }
+            }));
+        }
+        workers.shutdown();
+
+        int failed = 0;
+        int cards = 0;
+        long bytes = 0;
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                Result result = results.get(i).get();
+                cards += result.cards;
+                bytes += result.bytesRead;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while converting stories.", e);
+            } catch (ExecutionException e) {
+                System.err.println("Could not convert " + files.get(i) + ": "
+                        + e.getCause());
+                failed++;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int converted = files.size() - failed;
+        System.out.println(String.format(
+                "Converted %d of %d stories (%d cards, %.1f MB) in %.2fs on %d threads: %.1f stories/s, %.1f MB/s",
+                converted, files.size(), cards, bytes / 1e6, seconds, threads,
+                converted / seconds, bytes / 1e6 / seconds));
+        return failed;
+    }
+
+    private static boolean isStoryFile(File f) {
+        return f.getName().endsWith(".storymap")
+                || f.getName().endsWith(".storyjournal");
+    }
+
+    private static void findStoryFiles(File dir, List<File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File f : children) {
+            if (f.isDirectory()) {
+                findStoryFiles(f, files);
+            } else if (isStoryFile(f)) {
+                files.add(f);
+            }
+        }
+    }
+
+    private Result convert(File file) throws IOException,
+            TemplateHandlerException, MementoException {
+        StoryState state;
+        if (file.getName().endsWith(".storyjournal")) {
+            state = StoryJournal.replay(file);
+        } else {
+            state = StoryMapFormat.readAny(file);
+        }
+        StoryView story = StoryView.of(state);
+
+        // The output file goes at the same place under out as file is under
+        // in, and links to the shared images directory relative to itself.
+        String relative = in.toURI().relativize(file.toURI()).getPath();
+        String name = relative.substring(0, relative.lastIndexOf('.')) + ".html";
+        File html = new File(out, name);
+        File parent = html.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        String filesPath = IMAGES_DIR;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) == '/') {
+                filesPath = "../" + filesPath;
+            }
+        }
+        Writer writer = Util.openTextFile(html.getAbsolutePath());
+        try {
+            TemplateHandler.getShared().renderStory(story, filesPath, writer);
+        } finally {
+            writer.close();
+        }
+        return new Result(file.length(), story.getCards().size());
+    }
+}
@@ -0,0 +1,291 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import edu.umd.cs.piccolo.util.PBounds;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+
+/**
+ * Writes the images of story cards out to PNG files, e.g. for a story
+ * exported as HTML.
+ *
+ * A card's image only depends on its function, so each card is rendered and
+ * PNG-encoded once per function and render scale and the result is cached,
+ * along with a hash of the PNG. Cards are rendered straight from their
+ * function's image rather than from a node in the scene graph, so this works
+ * without a display and a card that happens to be scaled up under the mouse
+ * is exported at its normal size.
+ *
+ * An export encodes the cards across a pool of worker threads, one per core,
+ * and doesn't rewrite files that already hold the same PNG, so exporting the
+ * same story to the same place again writes nothing.
+ *
+ * @author seanh
+ */
+final class CardImageExporter {
+
+    /**
+     * Told about the progress of an export, on a worker thread.
+     */
+    interface Progress {
+
+        /**
+         * Called each time a card's file has been written or found to be up
+         * to date. done goes up to total.
+         */
+        void exported(int done, int total);
+    }
+
+    /**
+     * A rendered and encoded card image.
+     */
+    static final class Rendered {
+        private final BufferedImage image;
+        private final byte[] png;
+        private final byte[] hash;
+
+        Rendered(BufferedImage image, byte[] png, byte[] hash) {
+            this.image = image;
+            this.png = png;
+            this.hash = hash;
+        }
+
+        BufferedImage getImage() { return image; }
+    }
+
+    /**
+     * Identifies a card image by function number and render scale.
+     */
+    private static final class Key {
+        private final int number;
+        private final double scale;
+
+        Key(int number, double scale) {
+            this.number = number;
+            this.scale = scale;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) obj;
+            return k.number == number && k.scale == scale;
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = Double.doubleToLongBits(scale);
+            return 31 * number + (int) (bits ^ (bits >>> 32));
+        }
+    }
+
+    private static final CardImageExporter shared = new CardImageExporter();
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    /**
+     * The rendered images, or the renders in progress. Each image is only
+     * rendered once even if several threads want it at the same time.
+     */
+    private final ConcurrentHashMap<Key,Future<Rendered>> cache =
+            new ConcurrentHashMap<Key,Future<Rendered>>();
+
+    private final ExecutorService workers = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Card image exporter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * Get the exporter shared by the whole application.
+     */
+    static CardImageExporter getShared() {
+        return shared;
+    }
+
+    /**
+     * Return the image of a card for the given function at the given scale
+     * (1 is the size of a card in the story map), rendering and encoding it
+     * if it isn't cached.
+     */
+    Rendered get(final Function function, final double scale) throws IOException {
+        Key key = new Key(function.getNumber(), scale);
+        Future<Rendered> future = cache.get(key);
+        if (future == null) {
+            FutureTask<Rendered> task = new FutureTask<Rendered>(
+                    new Callable<Rendered>() {
+                        public Rendered call() throws IOException {
+                            return render(function, scale);
+                        }
+                    });
+            future = cache.putIfAbsent(key, task);
+            if (future == null) {
+                future = task;
+                task.run();
+            }
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rendering card image.", e);
+        } catch (ExecutionException e) {
+            // Don't cache the failure, try again next time.
+            cache.remove(key, future);
+            throw new IOException("Couldn't render card image for "+function, e.getCause());
+        }
+    }
+
+    private static Rendered render(Function function, double scale) throws IOException {
+        PBounds bounds = StoryCardBase.getBounds(function);
+        int width = (int) Math.ceil(bounds.getWidth() * scale);
+        int height = (int) Math.ceil(bounds.getHeight() * scale);
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = image.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2.drawImage(function.getImage(), 0, 0, width, height, null);
+        g2.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        byte[] png = out.toByteArray();
+        return new Rendered(image, png, hash(png));
+    }
+
+    /**
+     * Write the card images of the given functions at the given scale into
+     * directory dir, named after each function's image filename, and wait for
+     * them to be written. Files that already hold the same image are left
+     * alone. progress may be null.
+     *
+     * @throws IOException if any of the images couldn't be written. The rest
+     * are still written.
+     */
+    void export(List<Function> functions, final File dir, final double scale,
+            final Progress progress) throws IOException {
+        final int total = functions.size();
+        final AtomicInteger done = new AtomicInteger();
+        List<Future<Object>> writes = new ArrayList<Future<Object>>();
+        for (final Function f : functions) {
+            writes.add(workers.submit(new Callable<Object>() {
+                public Object call() throws IOException {
+                    write(get(f, scale), new File(dir, f.getImageFilename()));
+                    if (progress != null) {
+                        progress.exported(done.incrementAndGet(), total);
+                    }
+                    return null;
+                }
+            }));
+        }
+        IOException failure = null;
+        for (Future<Object> write : writes) {
+            try {
+                write.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while exporting card images.", e);
+            } catch (ExecutionException e) {
+                logger.warning("Exception when exporting story card image to file. " + e.getCause());
+                if (failure == null) {
+                    failure = new IOException("Couldn't export every card image.", e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Write the image to file unless file already holds the same bytes.
+     */
+    private static void write(Rendered rendered, File file) throws IOException {
+        if (file.length() == rendered.png.length
+                && Arrays.equals(hash(file), rendered.hash)) {
+            return;
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(rendered.png);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-1.
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] hash(byte[] bytes) {
+        return newDigest().digest(bytes);
+    }
+
+    private static byte[] hash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return digest.digest();
+    }
+}
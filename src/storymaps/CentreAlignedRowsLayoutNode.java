@@ -33,16 +33,40 @@ import java.util.ArrayList;
  * every row, so you probably want to call setBounds() after constructing the
  * layout node.
  *
+ * The size of every child and the start, width, height and y offset of every
+ * row are cached between layouts. When a child changes only its own row and
+ * the rows after it are laid out again, and that stops as soon as a row
+ * starts with the same child at the same y offset as before. Every layout is
+ * linear in the number of children laid out.
+ *
  * @author seanh
  */
-public class CentreAlignedRowsLayoutNode extends PNode {
+public class CentreAlignedRowsLayoutNode extends IncrementalLayoutNode {
 
     /**
      * The size of the gap between each node.
      */
     private double margin;
 
-    private int prev_num_children = 0;
+    /**
+     * The width and height of each child's full bounds, and the position of
+     * its top-left corner, as of the last layout.
+     */
+    private double[] widths = new double[16];
+    private double[] heights = new double[16];
+    private double[] lefts = new double[16];
+    private double[] tops = new double[16];
+
+    /**
+     * For each row, the index of its first child, its width (including the
+     * margins at either end), the height of its tallest child and its y
+     * offset.
+     */
+    private int[] rowStarts = new int[4];
+    private double[] rowWidths = new double[4];
+    private double[] rowHeights = new double[4];
+    private double[] rowYs = new double[4];
+    private int rows = 0;
 
     public CentreAlignedRowsLayoutNode(double margin) {
         this.margin = margin;
@@ -53,39 +77,10 @@ public class CentreAlignedRowsLayoutNode extends PNode {
     }
 
     /**
-     * Return the length of a given row (list of PNodes).
-     *
-     * The length is computed by summing the widths of all the PNodes and adding
-     * this.margin in-between each pair of PNodes.
-     */
-    private double widthOfRow(List<PNode> row) {
-        double width = 2 * margin;
-        for (PNode p : row) {
-            width += p.getFullBounds().getWidth() + margin;
-        }
-        if (row.size() >= 1) {
-            // Margin will have been added one time too many.
-            width = width - margin;
-        }
-        return width;
-    }
-
-    /**
-     * Position `node` so that the top-left corner of its full bounds is at
-     * (xoffset,yoffset).
-     *
+     * Return the number of rows in the current layout.
      */
-    private void offsetNode(PNode node, double xoffset, double yoffset) {
-        // Find the (left,top) position of the node's full bounds.
-        PBounds b = node.getFullBounds();
-        double left = b.getCenterX() - (b.getWidth() * 0.5);
-        double top = b.getCenterY() - (b.getHeight() * 0.5);
-        // How far from left to the desired xoffset?
-        double x = xoffset - left;
-        // How far from top to the desired yoffset?
-        double y = yoffset - top;
-        // Move the node by the necessary amount.
-        node.translate(x,y);
+    public int getRowCount() {
+        return rows;
     }
 
      /**
@@ -99,56 +94,160 @@ public class CentreAlignedRowsLayoutNode extends PNode {
         return children;
     }
 
+    /**
+     * Return the index of the row containing the child at index.
+     */
+    private int rowOf(int index) {
+        int low = 0;
+        int high = rows - 1;
+        while (low < high) {
+            int mid = (low + high + 1) / 2;
+            if (rowStarts[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private void measure(int i) {
+        PBounds b = getChild(i).getFullBoundsReference();
+        widths[i] = b.getWidth();
+        heights[i] = b.getHeight();
+        lefts[i] = b.getX();
+        tops[i] = b.getY();
+    }
+
     @Override
-    protected void layoutChildren() {
-        // We only recompute the layout if a child node has been added or
-        // removed (and not if one has just moved or changed size).
-        if (getChildrenCount() == prev_num_children) {
+    protected void layout(int from, int to) {
+        int count = getChildrenCount();
+        if (count == 0) {
+            rows = 0;
             return;
         }
-        else {
-            prev_num_children = getChildrenCount();
+        if (widths.length < count) {
+            int size = Math.max(count, 2 * widths.length);
+            widths = grow(widths, size);
+            heights = grow(heights, size);
+            lefts = grow(lefts, size);
+            tops = grow(tops, size);
         }
-        // layoutGrid is called to position all the child nodes of the
-        // background node within the bounds of the background node.
-
-        // Sort all the children of this container into rows that fit within the
-        // width of the container.
-        ArrayList<ArrayList<PNode>> rows = new ArrayList<ArrayList<PNode>>();
-        ArrayList<PNode> firstRow = new ArrayList<PNode>();
-        rows.add(firstRow);
-        double maxWidthOfRow = getBounds().getWidth();
-        for (PNode child : getChildren()) {
-            ArrayList<PNode> currentRow = rows.get(rows.size()-1);
-            if (widthOfRow(currentRow) + margin + child.getFullBounds().getWidth() >= maxWidthOfRow) {
-                currentRow = new ArrayList<PNode>();
-                rows.add(currentRow);
+
+        // Find the first row that may have changed. If the changed child
+        // starts a row it may now fit onto the end of the row before.
+        int firstRow = 0;
+        if (rows > 0) {
+            firstRow = rowOf(from);
+            if (firstRow > 0 && rowStarts[firstRow] == from) {
+                firstRow--;
             }
-            currentRow.add(child);
         }
 
-        // Set the offsets of the children of this node, row by row, child by
-        // child.
-        double yoffset = margin;
-        for (ArrayList<PNode> row : rows) {
-            double width = widthOfRow(row);
-
-            // Set xoffset of children in this row. While we do it figure out
-            // the height of the tallest child so we can increment yoffset for
-            // next time.
-            double middle = getBounds().getX() + 0.5*getBounds().getWidth();
-            double xoffset = middle - 0.5 * width;
-            double max_height = 0;
-            for (PNode child : row) {
-                offsetNode(child, xoffset, yoffset);
-                xoffset += child.getFullBounds().getWidth() + margin;
-                if (child.getFullBounds().getHeight() > max_height) {
-                    max_height = child.getFullBounds().getHeight();
+        // Sort the children from the first changed row on into new rows
+        // that fit within the width of the container.
+        int start = rows > 0 ? rowStarts[firstRow] : 0;
+        double yoffset = rows > 0 ? rowYs[firstRow] : margin;
+        double maxWidthOfRow = getBounds().getWidth();
+        int capacity = rows - firstRow + count - start + 1;
+        int[] newStarts = new int[capacity];
+        double[] newWidths = new double[capacity];
+        double[] newHeights = new double[capacity];
+        double[] newYs = new double[capacity];
+        int newRows = 0;
+        int oldRow = firstRow;
+        int resumeRow = -1;
+
+        // The width of a row is the sum of the widths of its children plus
+        // this.margin at either end and in-between each pair of children.
+        double width = 2 * margin;
+        double height = 0;
+        newStarts[0] = start;
+        for (int i = start; i < count; i++) {
+            measure(i);
+            if (i > newStarts[newRows] && width + margin + widths[i] >= maxWidthOfRow) {
+                newWidths[newRows] = width;
+                newHeights[newRows] = height;
+                newYs[newRows] = yoffset;
+                yoffset += height + margin;
+                newRows++;
+                // If a clean child starts a row at the same place as in the
+                // last layout then that row and every row after it are
+                // unchanged.
+                if (i > to) {
+                    while (oldRow < rows && rowStarts[oldRow] < i) {
+                        oldRow++;
+                    }
+                    if (oldRow < rows && rowStarts[oldRow] == i
+                            && rowYs[oldRow] == yoffset) {
+                        resumeRow = oldRow;
+                        break;
+                    }
                 }
+                newStarts[newRows] = i;
+                width = 2 * margin;
+                height = 0;
+            }
+            width += widths[i] + (i > newStarts[newRows] ? margin : 0);
+            height = Math.max(height, heights[i]);
+        }
+        if (resumeRow == -1) {
+            newWidths[newRows] = width;
+            newHeights[newRows] = height;
+            newYs[newRows] = yoffset;
+            newRows++;
+        }
+
+        // Set the offsets of the children in the new rows, row by row, child
+        // by child.
+        double middle = getBounds().getX() + 0.5*getBounds().getWidth();
+        for (int r = 0; r < newRows; r++) {
+            int end = r + 1 < newRows ? newStarts[r + 1]
+                    : (resumeRow == -1 ? count : rowStarts[resumeRow]);
+            double xoffset = middle - 0.5 * newWidths[r];
+            for (int i = newStarts[r]; i < end; i++) {
+                // Position the child so that the top-left corner of its full
+                // bounds is at (xoffset,yoffset).
+                getChild(i).translate(xoffset - lefts[i], newYs[r] - tops[i]);
+                lefts[i] = xoffset;
+                tops[i] = newYs[r];
+                xoffset += widths[i] + margin;
             }
-            yoffset += max_height + margin;
         }
-        // At this point yoffset is equal to the total height of the container's
-        // contents.
+
+        // Splice the new rows in between the unchanged rows before and after
+        // them.
+        int tail = resumeRow == -1 ? 0 : rows - resumeRow;
+        int total = firstRow + newRows + tail;
+        if (rowStarts.length < total) {
+            int size = Math.max(total, 2 * rowStarts.length);
+            rowStarts = grow(rowStarts, size);
+            rowWidths = grow(rowWidths, size);
+            rowHeights = grow(rowHeights, size);
+            rowYs = grow(rowYs, size);
+        }
+        if (tail > 0) {
+            System.arraycopy(rowStarts, resumeRow, rowStarts, firstRow + newRows, tail);
+            System.arraycopy(rowWidths, resumeRow, rowWidths, firstRow + newRows, tail);
+            System.arraycopy(rowHeights, resumeRow, rowHeights, firstRow + newRows, tail);
+            System.arraycopy(rowYs, resumeRow, rowYs, firstRow + newRows, tail);
+        }
+        System.arraycopy(newStarts, 0, rowStarts, firstRow, newRows);
+        System.arraycopy(newWidths, 0, rowWidths, firstRow, newRows);
+        System.arraycopy(newHeights, 0, rowHeights, firstRow, newRows);
+        System.arraycopy(newYs, 0, rowYs, firstRow, newRows);
+        rows = total;
+    }
+
+    private static double[] grow(double[] a, int size) {
+        double[] b = new double[size];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private static int[] grow(int[] a, int size) {
+        int[] b = new int[size];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
     }
-}
\ No newline at end of file
+}
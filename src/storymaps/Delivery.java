@@ -0,0 +1,160 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.swing.SwingUtilities;
+
+/**
+ * How the Messager delivers messages to a subscription: when and on which
+ * thread the receiver's receive method is called.
+ * 
+ * @author seanh
+ */
+public abstract class Delivery {
+
+    /**
+     * Call the receiver straight away, on the thread that sent the message.
+     * This is the default.
+     */
+    public static final Delivery SYNCHRONOUS = new Delivery() {
+        void deliver(Subscription s, Topic topic, Object arg) {
+            Messager.getMessager().receive(s, topic, arg);
+        }
+
+        @Override
+        public String toString() {
+            return "synchronous";
+        }
+    };
+
+    /**
+     * Call the receiver later on the event dispatch thread, e.g. for a
+     * receiver that changes the scene graph and may be sent messages from a
+     * timer or worker thread.
+     */
+    public static final Delivery EVENT_DISPATCH_THREAD = new Delivery() {
+        void deliver(final Subscription s, final Topic topic, final Object arg) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    Messager.getMessager().receive(s, topic, arg);
+                }
+            });
+        }
+
+        @Override
+        public String toString() {
+            return "event dispatch thread";
+        }
+    };
+
+    /**
+     * Call the receiver on a background thread shared by all background
+     * subscriptions, so that slow receivers don't hold up the sender.
+     */
+    public static final Delivery BACKGROUND = new Delivery() {
+        void deliver(final Subscription s, final Topic topic, final Object arg) {
+            background.execute(new Runnable() {
+                public void run() {
+                    Messager.getMessager().receive(s, topic, arg);
+                }
+            });
+        }
+
+        @Override
+        public String toString() {
+            return "background";
+        }
+    };
+
+    private static final ExecutorService background =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Messager background delivery");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Messager coalescing timer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private Delivery() {
+    }
+
+    /**
+     * Call the receiver on the event dispatch thread, at most once per burst
+     * of messages: the first message starts a window of the given number of
+     * milliseconds, and at the end of it the receiver is called once with
+     * the latest message sent during the window. E.g. for a receiver that
+     * starts a camera animation, which should happen once after a series of
+     * resizes rather than once per resize.
+     */
+    public static Delivery coalesced(long millis) {
+        return new Coalesced(millis);
+    }
+
+    /**
+     * Deliver a message to a subscription with this delivery.
+     */
+    abstract void deliver(Subscription s, Topic topic, Object arg);
+
+    private static final class Coalesced extends Delivery {
+        private final long window;
+
+        Coalesced(long window) {
+            this.window = window;
+        }
+
+        void deliver(final Subscription s, final Topic topic, Object arg) {
+            // Remember the latest message before checking for a pending
+            // delivery, so that either the pending delivery picks it up or
+            // this message schedules a new one.
+            s.latest = arg;
+            if (s.pending.compareAndSet(false, true)) {
+                timer.schedule(new Runnable() {
+                    public void run() {
+                        SwingUtilities.invokeLater(new Runnable() {
+                            public void run() {
+                                s.pending.set(false);
+                                Messager.getMessager().receive(s, topic, s.latest);
+                            }
+                        });
+                    }
+                }, window, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "coalesced over " + window + "ms";
+        }
+    }
+}
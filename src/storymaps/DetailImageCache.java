@@ -0,0 +1,258 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import java.awt.Image;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+
+/**
+ * Holds the decoded high-detail images of functions within a memory budget.
+ *
+ * A function's high-detail image is only decoded when one of its cards is
+ * first painted zoomed in, and is decoded in the background so that painting
+ * never waits for it. The cache keeps the most recently used images up to the
+ * budget, set in bytes by the storymaps.detailImageBudget system property
+ * (default 16MB). The least recently used images beyond the budget, and the
+ * images of cards that have been zoomed back out, are only softly referenced,
+ * so the garbage collector reclaims them when memory runs short and they are
+ * decoded again if they're needed.
+ *
+ * @author seanh
+ */
+final class DetailImageCache {
+
+    private static final long DEFAULT_BUDGET = 16L * 1024 * 1024;
+
+    /**
+     * How long to wait before trying again to decode an image that couldn't
+     * be decoded, in milliseconds.
+     */
+    private static final long RETRY_AFTER = 10000;
+
+    private static final DetailImageCache shared = new DetailImageCache(
+            Long.getLong("storymaps.detailImageBudget", DEFAULT_BUDGET));
+
+    private final long budget;
+    private long size = 0;
+
+    /**
+     * The images within the budget, in least recently used order.
+     */
+    private final LinkedHashMap<Function,Image> images =
+            new LinkedHashMap<Function,Image>(16, 0.75f, true);
+
+    /**
+     * Images that have been evicted from images but not yet collected.
+     */
+    private final Map<Function,SoftReference<Image>> evicted =
+            new HashMap<Function,SoftReference<Image>>();
+
+    /**
+     * The functions whose images are being decoded in the background, and
+     * the callbacks to run when each one has been decoded.
+     */
+    private final Map<Function,List<Runnable>> loading =
+            new HashMap<Function,List<Runnable>>();
+
+    /**
+     * When each function whose image couldn't be decoded last failed, so
+     * that a node repainting itself doesn't retry it continuously.
+     */
+    private final Map<Function,Long> failed = new HashMap<Function,Long>();
+
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Detail image loader");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    DetailImageCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Get the cache used by every Function.
+     */
+    static DetailImageCache getShared() {
+        return shared;
+    }
+
+    /**
+     * Return the function's high-detail image if it is decoded, or null if it
+     * isn't. Never blocks.
+     */
+    synchronized Image peek(Function function) {
+        Image image = images.get(function);
+        if (image == null) {
+            SoftReference<Image> ref = evicted.remove(function);
+            if (ref != null) {
+                image = ref.get();
+                if (image != null) {
+                    put(function, image);
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Start decoding the function's high-detail image in the background if it
+     * isn't decoded already. When it has been decoded onLoaded is run on the
+     * event dispatch thread, along with the callbacks of any other requests
+     * for the same function that came in while it was being decoded.
+     */
+    void request(final Function function, Runnable onLoaded) {
+        synchronized (this) {
+            if (images.containsKey(function)) {
+                return;
+            }
+            Long failedAt = failed.get(function);
+            if (failedAt != null
+                    && System.currentTimeMillis() - failedAt < RETRY_AFTER) {
+                return;
+            }
+            List<Runnable> callbacks = loading.get(function);
+            if (callbacks != null) {
+                callbacks.add(onLoaded);
+                return;
+            }
+            callbacks = new ArrayList<Runnable>();
+            callbacks.add(onLoaded);
+            loading.put(function, callbacks);
+        }
+        loader.execute(new Runnable() {
+            public void run() {
+                Image image = null;
+                try {
+                    image = function.decodeHighDetailImage();
+                } catch (RuntimeException e) {
+                    Logger.getLogger(DetailImageCache.class.getName()).log(Level.WARNING,
+                            "Couldn't decode high-detail image of " + function, e);
+                } catch (OutOfMemoryError e) {
+                    Logger.getLogger(DetailImageCache.class.getName()).log(Level.WARNING,
+                            "Couldn't decode high-detail image of " + function, e);
+                } finally {
+                    // Whatever happened, let the waiting nodes repaint, and
+                    // let the image be requested again.
+                    final List<Runnable> callbacks;
+                    synchronized (DetailImageCache.this) {
+                        callbacks = loading.remove(function);
+                        if (image != null) {
+                            failed.remove(function);
+                            put(function, image);
+                        } else {
+                            failed.put(function, System.currentTimeMillis());
+                        }
+                    }
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            for (Runnable callback : callbacks) {
+                                callback.run();
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Return the function's high-detail image, decoding it on this thread if
+     * necessary.
+     */
+    Image get(Function function) {
+        Image image = peek(function);
+        if (image == null) {
+            image = function.decodeHighDetailImage();
+            if (image == null) {
+                return function.getImage();
+            }
+            synchronized (this) {
+                put(function, image);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Called when a node that painted the function's high-detail image is
+     * painted zoomed out again. Demote the image to a soft reference, so that
+     * it only stays in memory while there's memory to spare. If it's needed
+     * again before it's collected, peek promotes it back.
+     */
+    synchronized void release(Function function) {
+        Image image = images.remove(function);
+        if (image != null) {
+            size -= bytes(image);
+            evicted.put(function, new SoftReference<Image>(image));
+            // Its scaled copies would keep it reachable.
+            ScaledImageCache.getShared().remove(image);
+        }
+    }
+
+    private void put(Function function, Image image) {
+        Image old = images.put(function, image);
+        if (old != null) {
+            size -= bytes(old);
+        }
+        evicted.remove(function);
+        size += bytes(image);
+        // Always keep the image that was just added, even if on its own it's
+        // over budget.
+        Iterator<Map.Entry<Function,Image>> i = images.entrySet().iterator();
+        while (size > budget && images.size() > 1) {
+            Map.Entry<Function,Image> eldest = i.next();
+            Image victim = eldest.getValue();
+            size -= bytes(victim);
+            evicted.put(eldest.getKey(), new SoftReference<Image>(victim));
+            i.remove();
+            // Its scaled copies would keep it reachable.
+            ScaledImageCache.getShared().remove(victim);
+        }
+    }
+
+    private static long bytes(Image image) {
+        return 4L * Math.max(0, image.getWidth(null))
+                * Math.max(0, image.getHeight(null));
+    }
+
+    synchronized long getSize() { return size; }
+
+    @Override
+    public synchronized String toString() {
+        return "DetailImageCache: " + images.size() + " images, " + size
+                + "/" + budget + " bytes, " + evicted.size() + " evicted";
+    }
+}
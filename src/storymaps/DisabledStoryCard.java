@@ -60,7 +60,7 @@ class DisabledStoryCard extends StoryCardBase implements Originator {
                     // If the StoryCard is double-clicked with the left mouse
                     // button send the "StoryCard double-clicked" message.
                     Messager m = Messager.getMessager();
-                    m.send("StoryCard double-clicked", DisabledStoryCard.this);                
+                    m.send(Topic.STORYCARD_DOUBLE_CLICKED, DisabledStoryCard.this);                
                     //goToHighDetail();
                     event.setHandled(true);
                 }
@@ -95,6 +95,8 @@ class DisabledStoryCard extends StoryCardBase implements Originator {
     // --------------------
     
     private static final class DisabledStoryCardMemento implements Memento {
+        private static final long serialVersionUID = 8454577853451110551L;
+
         // No need to defensively copy anything as FunctionMemento and
         // StoryCardMemento should be immutable.
         private final Memento functionMemento;
@@ -139,4 +141,24 @@ class DisabledStoryCard extends StoryCardBase implements Originator {
         }
         return dsc;
     }
-}
\ No newline at end of file
+
+    /**
+     * Return the slot recorded in a DisabledStoryCard memento, without
+     * constructing a DisabledStoryCard.
+     */
+    static StoryState.Slot slotFromMemento(Memento m) throws MementoException {
+        if (!(m instanceof DisabledStoryCardMemento)) {
+            String detail = "Wrong type of memento object.";
+            MementoException e = new MementoException(detail);
+            Logger.getLogger(DisabledStoryCard.class.getName()).throwing("DisabledStoryCard", "slotFromMemento", e);
+            throw e;
+        }
+        DisabledStoryCardMemento dscm = (DisabledStoryCardMemento) m;
+        int number = Function.numberFromMemento(dscm.getFunctionMemento());
+        Memento scm = dscm.getStoryCardMemento();
+        if (scm == null) {
+            return new StoryState.Slot(number, null);
+        }
+        return new StoryState.Slot(number, StoryCard.slotFromMemento(scm).getText());
+    }
+}
@@ -25,7 +25,15 @@ import com.google.gson.*;
 import java.awt.Image;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 
 /**
@@ -35,9 +43,12 @@ import java.util.logging.Logger;
  * The Function class has a public static member functions that is a list of all
  * functions read in from the functions.xml file by XStream.
  * 
- * Function objects are also created when saved stories are read in from file,
- * so it is possible to have more than one Function object with the same fields,
- * or even with some fields the same but others different.
+ * There is one canonical Function object per function number. When a saved
+ * story is read in from file newInstanceFromMemento returns the canonical
+ * Function with the memento's number rather than constructing a new one, so
+ * that each function's images are decoded only once per process. A Function
+ * is only constructed from a memento if its number isn't in functions.json,
+ * and then it becomes the canonical Function for that number.
  * 
  * The Function class constructor is package-private so that FunctionConverter
  * can use it, but it should not be used otherwise.
@@ -72,17 +83,36 @@ final class Function implements Comparable, Originator {
 
     private final String imageFilename;
     private final String imagePath;
-    private final Image image;
     private final String highDetailImagePath;
-    private Image highDetailImage;
+
+    /**
+     * The low-detail image is decoded lazily, or in the background by
+     * preloadImages, rather than in the constructor. The high-detail image is
+     * not held by the Function at all but by the DetailImageCache, which
+     * decodes it the first time a card is zoomed in on.
+     */
+    private Image image = null;
+
+    /**
+     * The thread pool that preloadImages decodes images on, and the pending
+     * low-detail decodes that awaitImages waits for.
+     */
+    private static ExecutorService imageLoader = null;
+    private static List<Future<?>> lowDetailLoads = null;
     
     /**
      * A singleton list containing a Function object for every function
      * represented in the functions.xml file.
      */
     private static List<Function> functions = null;
-    
-    private static void initialiseFunctionsIfNecessary() {
+
+    /**
+     * The canonical Function for each function number: every function in
+     * functions plus any unknown functions read in from saved stories.
+     */
+    private static Map<Integer,Function> registry = null;
+
+    private static synchronized void initialiseFunctionsIfNecessary() {
         if (functions == null) {
             try {
                 String jsonString = Util.readTextFileFromClassPath("/data/functions/functions.json");
@@ -93,6 +123,7 @@ final class Function implements Comparable, Originator {
                 JsonArray jsonArray = element.getAsJsonArray();
 
                 functions = new ArrayList<Function>();
+                registry = new HashMap<Integer,Function>();
                 for (int i = 0; i < jsonArray.size(); i++) {
                     if ( ! jsonArray.get(i).isJsonNull() ) {
                         try {
@@ -103,6 +134,7 @@ final class Function implements Comparable, Originator {
                             String instructions = jsonObject.get("instructions").toString();
                             Function function = new Function(number,name,description,instructions);
                             functions.add(function);
+                            registry.put(number, function);
                         } catch (IllegalStateException e) {
                             throw new RuntimeException("Exception when reading function #"+i+" in functions file.",e);
                         }
@@ -115,6 +147,7 @@ final class Function implements Comparable, Originator {
             } catch (JsonParseException e) {
                 throw new RuntimeException("Exception when reading functions file.",e);
             }
+            functions = Collections.unmodifiableList(functions);
         }
     }
     
@@ -122,7 +155,16 @@ final class Function implements Comparable, Originator {
         initialiseFunctionsIfNecessary();
         return functions;
     }
-    
+
+    /**
+     * Return the canonical function with the given number, or null if there
+     * is no such function.
+     */
+    static synchronized Function forNumber(int number) {
+        initialiseFunctionsIfNecessary();
+        return registry.get(number);
+    }
+
     Function(int number, String name, String description, String instructions) {
         this.number = number;
         this.name = name;
@@ -131,18 +173,75 @@ final class Function implements Comparable, Originator {
         this.imageFilename  = number+".png";
         this.imagePath = "/data/functions/"+imageFilename;
         this.highDetailImagePath = "/data/functions/"+number+"-detail.png";
-        try {
-            this.image = Util.readImageFromClassPath(imagePath);
-        } catch (IOException e) {
-            System.out.println("Couldn't load image for function "+imagePath);
-            // FIXME: shouldn't need to crash here.
-            throw new RuntimeException("Couldn't load image for function "+imagePath,e);
+    }
+
+    /**
+     * Start decoding the low-detail image of every function in the
+     * background, spread across all of the available cores. Calling this more
+     * than once has no effect.
+     */
+    static synchronized void preloadImages() {
+        if (imageLoader != null) {
+            return;
         }
+        imageLoader = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Function image loader");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        lowDetailLoads = new ArrayList<Future<?>>();
+        for (final Function f : getFunctions()) {
+            lowDetailLoads.add(imageLoader.submit(new Runnable() {
+                public void run() {
+                    f.getImage();
+                }
+            }));
+        }
+        // The queued decodes still run, the threads exit once they're done.
+        imageLoader.shutdown();
+    }
+
+    /**
+     * Wait until preloadImages has decoded every function's low-detail image.
+     * If preloadImages hasn't been called then the images will be decoded on
+     * demand instead, and this returns immediately.
+     */
+    static void awaitImages() {
+        List<Future<?>> loads;
+        synchronized (Function.class) {
+            loads = lowDetailLoads;
+        }
+        if (loads == null) {
+            return;
+        }
+        for (Future<?> load : loads) {
+            try {
+                load.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Couldn't load function image.", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Decode and return a new copy of the high-detail image. If there is no
+     * high-detail image the low-detail image is returned instead. Only the
+     * DetailImageCache should call this, everything else should use
+     * getHighDetailImage.
+     */
+    Image decodeHighDetailImage() {
         try {
-            this.highDetailImage = Util.readImageFromClassPath(highDetailImagePath);
+            return Util.readImageFromClassPath(highDetailImagePath);
         } catch (IOException e) {
-            System.out.println("Couldn't load image for function "+imagePath);
-            this.highDetailImage = this.image;
+            System.out.println("Couldn't load image for function "+highDetailImagePath);
+            return getImage();
         }
     }
         
@@ -150,10 +249,35 @@ final class Function implements Comparable, Originator {
     public String getName() { return name; }
     public String getDescription() { return description; }
     public String getInstructions() { return instructions; }
-    public Image getImage() { return image; }
+
+    /**
+     * Return the low-detail image, decoding it first if necessary.
+     */
+    public synchronized Image getImage() {
+        if (image == null) {
+            try {
+                image = Util.readImageFromClassPath(imagePath);
+            } catch (IOException e) {
+                System.out.println("Couldn't load image for function "+imagePath);
+                // FIXME: shouldn't need to crash here.
+                throw new RuntimeException("Couldn't load image for function "+imagePath,e);
+            }
+        }
+        return image;
+    }
+
     public String getImageFilename() { return imageFilename; }
     public String getImagePath() { return imagePath; }
-    public Image getHighDetailImage() { return highDetailImage; }
+
+    /**
+     * Return the high-detail image, decoding it first if it isn't in the
+     * DetailImageCache. Painting code should use the non-blocking
+     * DetailImageCache.peek and request instead.
+     */
+    public Image getHighDetailImage() {
+        return DetailImageCache.getShared().get(this);
+    }
+
     public String getHighDetailImagePath() { return highDetailImagePath; }
     
     @Override
@@ -194,6 +318,8 @@ final class Function implements Comparable, Originator {
     // --------------------
     
     private static final class FunctionMemento implements Memento {
+        private static final long serialVersionUID = 7255132345709144507L;
+
         // No need to defensively copy anything as int is a primitive type
         // and strings are immutable.
         private final int number;
@@ -230,8 +356,27 @@ final class Function implements Comparable, Originator {
             throw e;
         }
         FunctionMemento f = (FunctionMemento) m;
-        return new Function(f.getNumber(),f.getName(),f.getDescription(),
-                f.getInstructions());
+        synchronized (Function.class) {
+            Function canonical = forNumber(f.getNumber());
+            if (canonical == null) {
+                canonical = new Function(f.getNumber(),f.getName(),
+                        f.getDescription(),f.getInstructions());
+                registry.put(f.getNumber(), canonical);
+            }
+            return canonical;
+        }
     }
-}
 
+    /**
+     * Return the number of the function recorded in a Function memento.
+     */
+    static int numberFromMemento(Memento m) throws MementoException {
+        if (!(m instanceof FunctionMemento)) {
+            String detail = "Wrong type of memento object.";
+            MementoException e = new MementoException(detail);
+            Logger.getLogger(Function.class.getName()).throwing("Function", "numberFromMemento", e);
+            throw e;
+        }
+        return ((FunctionMemento) m).getNumber();
+    }
+}
@@ -24,28 +24,78 @@ import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.HTMLEditorKit;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
 import storymaps.ui.Fonts;
 
 /** 
+ * The editor for the user's text on one story card, shown in the StoryEditor.
+ * 
+ * The Swing components are only made when the editor is first shown, since
+ * most story cards (e.g. those still in the deck) never are, and are let go
+ * of again when the editor is taken out of the StoryEditor. Until then the
+ * text is just kept as a string. The parsed HTML of each function's
+ * description and instructions, and its story card icon, are shared by all
+ * the editors for that function.
  * 
  * @author seanh
  */
 class FunctionEditor {
 
+    /**
+     * The parsed descriptions and instructions, and the icons, of the
+     * functions that have had an editor shown, by function. Only used on the
+     * event dispatch thread.
+     */
+    private static final Map<Function,HTMLDocument> descriptions =
+            new HashMap<Function,HTMLDocument>();
+    private static final Map<Function,HTMLDocument> instructionDocuments =
+            new HashMap<Function,HTMLDocument>();
+    private static final Map<Function,ImageIcon> icons =
+            new HashMap<Function,ImageIcon>();
+
     /**
      * The Propp function that this FunctionEditor represents.
      */
     private Function function;
+
+    /**
+     * The story card this FunctionEditor belongs to.
+     */
+    private StoryCard card;
+
+    /**
+     * The user's text, while the editor isn't made.
+     */
+    private String text;
        
     /**
-     * The root JPanel of this function editor.
+     * The root JPanel of this function editor. The editor's components are
+     * added to it when it's first shown.
      */
-    private JComponent editorPanel;
+    private JPanel editorPanel;
     
     /**
-     * The text editor where the user enters her text for this Propp function.
+     * The text editor where the user enters her text for this Propp function,
+     * or null if the editor isn't made.
      */
     private JTextArea editor;
+
+    private JEditorPane description;
+    private JTextPane instructions;
+
+    /**
+     * The user's text as HTML, or null if the text has changed since it was
+     * last converted. Only used on the event dispatch thread.
+     */
+    private String html = null;
     
     FunctionEditor(StoryCard s) {
         this(s,"");
@@ -53,7 +103,8 @@ class FunctionEditor {
       
     FunctionEditor(StoryCard s, String text) {
         this.function = s.getFunction();
-        editorPanel = makeEditorPanel(s,text);
+        this.card = s;
+        this.text = text;
     }
 
     private JLabel makeName() {
@@ -67,10 +118,34 @@ class FunctionEditor {
         JLabel image = new JLabel(imageIcon);
         return image;        
     }
+
+    /**
+     * Return the shared document for the given function's HTML, parsing it
+     * the first time.
+     */
+    private HTMLDocument sharedDocument(Map<Function,HTMLDocument> documents,
+            String html) {
+        HTMLDocument document = documents.get(function);
+        if (document == null) {
+            HTMLEditorKit kit = new HTMLEditorKit();
+            document = (HTMLDocument) kit.createDefaultDocument();
+            try {
+                kit.read(new StringReader("<html>"+html+"</html>"), document, 0);
+            } catch (IOException e) {
+                // Can't happen reading from a string.
+                throw new RuntimeException(e);
+            } catch (BadLocationException e) {
+                throw new RuntimeException(e);
+            }
+            documents.put(function, document);
+        }
+        return document;
+    }
     
     private JEditorPane makeDescription(Color background) {
-        JEditorPane description = new JEditorPane("text/html",
-                "<html>"+function.getDescription()+"</html>");
+        JEditorPane description = new JEditorPane(); // Hiding a field.
+        description.setContentType("text/html");
+        description.setDocument(sharedDocument(descriptions, function.getDescription()));
         description.setEditable(false);
         description.setBackground(background);
         //description.setPreferredSize(new Dimension(100,100));
@@ -84,15 +159,26 @@ class FunctionEditor {
         editor.setLineWrap(true);
         editor.setWrapStyleWord(true);
         editor.setText(text);
+        editor.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                html = null;
+            }
+            public void removeUpdate(DocumentEvent e) {
+                html = null;
+            }
+            public void changedUpdate(DocumentEvent e) {
+                // Attribute changes don't change the text.
+            }
+        });
         editor.setFont(Fonts.LARGE);
         editor.setBorder(BorderFactory.createLineBorder(Color.black));
         return editor;
     }
     
     private JTextPane makeInstructions(Color background) {
-        JTextPane instructions = new JTextPane();
+        JTextPane instructions = new JTextPane(); // Hiding a field.
         instructions.setContentType("text/html");
-        instructions.setText("<html>"+function.getInstructions()+"</html>");
+        instructions.setDocument(sharedDocument(instructionDocuments, function.getInstructions()));
         instructions.setEditable(false);
         instructions.setBackground(background);
         instructions.setFont(Fonts.NORMAL);
@@ -104,7 +190,12 @@ class FunctionEditor {
         JPanel editorPanel = new JPanel(); // Hiding a field.
         editorPanel.setLayout(new BoxLayout(editorPanel,BoxLayout.X_AXIS));
 
-        JLabel storyCard = new JLabel(new ImageIcon(s.getImage()));
+        ImageIcon icon = icons.get(function);
+        if (icon == null) {
+            icon = new ImageIcon(s.getImage());
+            icons.put(function, icon);
+        }
+        JLabel storyCard = new JLabel(icon);
         storyCard.setAlignmentY(Component.TOP_ALIGNMENT);
         editorPanel.add(storyCard);
 
@@ -113,11 +204,11 @@ class FunctionEditor {
         innerPanel.setLayout(new BoxLayout(innerPanel,BoxLayout.Y_AXIS));
         innerPanel.setBorder(BorderFactory.createEmptyBorder(10,10,10,10));
 
-        JEditorPane description = makeDescription(innerPanel.getBackground());
+        description = makeDescription(innerPanel.getBackground());
         description.setAlignmentX(Component.LEFT_ALIGNMENT);
         innerPanel.add(description);
 
-        JEditorPane instructions = makeInstructions(innerPanel.getBackground());
+        instructions = makeInstructions(innerPanel.getBackground());
         instructions.setAlignmentX(Component.LEFT_ALIGNMENT);
         innerPanel.add(instructions);
 
@@ -135,8 +226,57 @@ class FunctionEditor {
 
         return scrollPane;
     }
-                    
+
+    /**
+     * Make the editor's components, if they aren't made.
+     */
+    private void make() {
+        if (editor != null) {
+            return;
+        }
+        editorPanel.add(makeEditorPanel(card, text), BorderLayout.CENTER);
+        text = null;
+        editorPanel.revalidate();
+    }
+
+    /**
+     * Let go of the editor's components, keeping the user's text. The panes
+     * are given documents of their own so that the shared documents don't
+     * keep them alive.
+     */
+    private void release() {
+        if (editor == null) {
+            return;
+        }
+        text = editor.getText();
+        description.setDocument(description.getEditorKit().createDefaultDocument());
+        instructions.setDocument(instructions.getEditorKit().createDefaultDocument());
+        editorPanel.removeAll();
+        editor = null;
+        description = null;
+        instructions = null;
+    }
+
+    /**
+     * Return the root component of this function editor. Its contents are
+     * made when it is first shown on screen and let go of when it's removed
+     * from the screen.
+     */
     public JComponent getComponent() {
+        if (editorPanel == null) {
+            editorPanel = new JPanel(new BorderLayout());
+            editorPanel.addHierarchyListener(new HierarchyListener() {
+                public void hierarchyChanged(HierarchyEvent e) {
+                    if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0
+                            && editorPanel.isShowing()) {
+                        make();
+                    } else if ((e.getChangeFlags() & HierarchyEvent.DISPLAYABILITY_CHANGED) != 0
+                            && !editorPanel.isDisplayable()) {
+                        release();
+                    }
+                }
+            });
+        }
         return editorPanel;
     }
     
@@ -145,7 +285,7 @@ class FunctionEditor {
     }
     
     public String getText() {
-        return editor.getText();
+        return editor == null ? text : editor.getText();
     }
     
     /**
@@ -153,18 +293,80 @@ class FunctionEditor {
      * <p> </p> tags, so that line-breaks and paragraphs are preserved when the
      * text is written out to HTML.
      * 
+     * The HTML is kept until the user next edits the text, so rendering an
+     * unchanged card again costs nothing.
      */
     public String getTextAsHTML() {
-        String plainText = editor.getText();
-        String html = "";
-        for (String paragraph : plainText.split("\n\n")) {
-            html = html + "<p>" + paragraph.replace("\n", "<br/>") + "</p>";
+        if (html == null) {
+            html = toHTML(getText());
         }
         return html;
     }
+
+    /**
+     * Return plainText decorated with HTML <br/> and <p> </p> tags the way
+     * getTextAsHTML does, e.g. for text read from a story file.
+     */
+    static String toHTML(String plainText) {
+        StringBuilder html = new StringBuilder(plainText.length() + 16);
+        appendHTML(plainText, html);
+        return html.toString();
+    }
+
+    /**
+     * Append plainText to out as HTML, in one pass: characters that are
+     * special in HTML are escaped, each paragraph (separated by a blank line)
+     * is put in <p> </p> tags and the other line-breaks become <br/> tags.
+     * As before, empty paragraphs at the end of the text are left out.
+     */
+    static void appendHTML(CharSequence plainText, StringBuilder out) {
+        int length = plainText.length();
+        boolean paragraphs = false;
+        boolean open = false;
+        int emptyParagraphs = 0;
+        for (int i = 0; i < length; i++) {
+            char c = plainText.charAt(i);
+            if (c == '\n' && i + 1 < length && plainText.charAt(i + 1) == '\n') {
+                // The end of a paragraph. Empty ones are only written once
+                // it's known they aren't at the end of the text.
+                paragraphs = true;
+                if (open) {
+                    out.append("</p>");
+                    open = false;
+                } else {
+                    emptyParagraphs++;
+                }
+                i++;
+                continue;
+            }
+            if (!open) {
+                for (; emptyParagraphs > 0; emptyParagraphs--) {
+                    out.append("<p></p>");
+                }
+                out.append("<p>");
+                open = true;
+            }
+            switch (c) {
+                case '\n': out.append("<br/>"); break;
+                case '&': out.append("&amp;"); break;
+                case '<': out.append("&lt;"); break;
+                case '>': out.append("&gt;"); break;
+                case '"': out.append("&quot;"); break;
+                default: out.append(c);
+            }
+        }
+        if (open) {
+            out.append("</p>");
+        } else if (!paragraphs) {
+            // The text is empty.
+            out.append("<p></p>");
+        }
+    }
     
     public void focus() {
-        editor.requestFocusInWindow();
+        if (editor != null) {
+            editor.requestFocusInWindow();
+        }
     }
 
     /**
@@ -25,9 +25,14 @@ import edu.umd.cs.piccolo.PNode;
 /**
  * A layout node that lays its children out in a grid.
  * 
+ * The height of every row and its y offset are cached between layouts. When
+ * a child changes only its own row and the rows after it are laid out again,
+ * and that stops as soon as an unchanged row is back at the same y offset as
+ * before.
+ * 
  * @author seanh
  */
-public class GridLayoutNode extends PNode {
+public class GridLayoutNode extends IncrementalLayoutNode {
 
     /**
      * The number of columns in the grid layout
@@ -38,8 +43,14 @@ public class GridLayoutNode extends PNode {
      * The size of the gap between each node.         
      */
     private int margin;
-    
-    private int prev_num_children = 0;
+
+    /**
+     * The height of the tallest node in each row and the y offset of each
+     * row, as of the last layout.
+     */
+    private double[] rowHeights = new double[4];
+    private double[] rowYs = new double[4];
+    private int rows = 0;
     
     public GridLayoutNode(int columns, int margin) {
         this.columns = columns;
@@ -56,51 +67,54 @@ public class GridLayoutNode extends PNode {
         
     @Override
     /**
-     * Reposition every child node of this node, arranging them into a grid
-     * formation of width this.columns, with gaps of size this.margin between
-     * the nodes.
+     * Reposition the changed child nodes of this node, and the nodes after
+     * them, arranging them into a grid formation of width this.columns, with
+     * gaps of size this.margin between the nodes.
      */
-    public void layoutChildren() {
-        // We only recompute the layout if a child node has been added or
-        // removed (and not if one has just moved or changed size).
-        if (getChildrenCount() == prev_num_children) {
-            return;
+    protected void layout(int from, int to) {
+        int count = getChildrenCount();
+        int newRows = (count + columns - 1) / columns;
+        if (rowHeights.length < newRows) {
+            int size = Math.max(newRows, 2 * rowHeights.length);
+            double[] heights = new double[size];
+            double[] ys = new double[size];
+            System.arraycopy(rowHeights, 0, heights, 0, rowHeights.length);
+            System.arraycopy(rowYs, 0, ys, 0, rowYs.length);
+            rowHeights = heights;
+            rowYs = ys;
         }
-        else {
-            prev_num_children = getChildrenCount();
+        int firstRow = Math.min(from / columns, rows);
+        double yoffset = firstRow < rows ? rowYs[firstRow] : 0;
+        if (firstRow > 0 && firstRow == rows) {
+            yoffset = rowYs[firstRow - 1] + rowHeights[firstRow - 1] + margin;
         }
-        
-        double xoffset = 0;
-        double yoffset = 0;
-        for (int i = 0; i < getChildrenCount(); i++) {
-            if (i > 0) {
-                // If this is the first node in a row other than the first row.
-                if (i % this.columns == 0) {
-                    // Increment yoffset by the height of the tallest node in the
-                    // previous row plus the margin.
-                    double maxheight = 0;
-                    for (int j = i-this.columns; j<i; j++) {
-                        double height = getChild(j).getHeight();
-                        if (height > maxheight) {
-                            maxheight = height;
-                        }
-                    }
-                    yoffset += maxheight + margin;
-                    // Reset xoffset to 0.
-                    xoffset = 0;                
-                } else {
-                    // Increment xoffset by the width of the previous node plus the
-                    // margin
-                    double width = getChild(i-1).getWidth();
-                    xoffset += width + margin;
-                }
+        for (int row = firstRow; row < newRows; row++) {
+            int start = row * columns;
+            int end = Math.min(start + columns, count);
+            // If this row has no changed nodes and is at the same y offset as
+            // before then it and every row after it are unchanged.
+            if (start > to && row < rows && rowYs[row] == yoffset) {
+                break;
             }
-            // Position the node so that its top-left corner is at
-            // (xoffset,yoffset)
-            PNode child = getChild(i);
-            double top = child.getY();
-            double left = child.getX();
-            child.setOffset(xoffset-left,yoffset-top);
-        }                            
+            double xoffset = 0;
+            double maxheight = 0;
+            for (int i = start; i < end; i++) {
+                // Position the node so that its top-left corner is at
+                // (xoffset,yoffset)
+                PNode child = getChild(i);
+                double top = child.getY();
+                double left = child.getX();
+                child.setOffset(xoffset-left,yoffset-top);
+                // Increment xoffset by the width of this node plus the margin
+                xoffset += child.getWidth() + margin;
+                maxheight = Math.max(maxheight, child.getHeight());
+            }
+            rowHeights[row] = maxheight;
+            rowYs[row] = yoffset;
+            // Increment yoffset by the height of the tallest node in this row
+            // plus the margin.
+            yoffset += maxheight + margin;
+        }
+        rows = newRows;
     }    
-}
\ No newline at end of file
+}
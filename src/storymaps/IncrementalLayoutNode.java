@@ -0,0 +1,174 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import edu.umd.cs.piccolo.PNode;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base class for layout nodes that only redo the part of their layout that
+ * may have changed.
+ *
+ * The node keeps track of which of its children need to be laid out again: a
+ * child that was added, removed or moved to a different index, a child whose
+ * bounds changed, and every child after them. Changes to a child's transform
+ * (e.g. a card being dragged or scaled up while the mouse is over it) don't
+ * invalidate the layout. A change to this node's own bounds invalidates every
+ * child.
+ *
+ * When nothing has changed layoutChildren returns immediately, which matters
+ * because Piccolo calls it whenever this node's full bounds are validated.
+ * Otherwise it calls layout with the range of children that changed, and the
+ * subclass lays out those children and any that follow them that are
+ * affected, using whatever it cached about the rest last time.
+ *
+ * @author seanh
+ */
+public abstract class IncrementalLayoutNode extends PNode {
+
+    private static final long serialVersionUID = -6826083164384604646L;
+
+    /**
+     * The children as they were at the last layout.
+     */
+    private final List<PNode> laidOut = new ArrayList<PNode>();
+
+    /**
+     * The index of each of the children in laidOut.
+     */
+    private final Map<PNode,Integer> indices = new IdentityHashMap<PNode,Integer>();
+
+    /**
+     * The first and last indices of the children that need laying out again,
+     * or -1 if none do.
+     */
+    private int dirtyFrom = -1;
+    private int dirtyTo = -1;
+
+    private boolean childrenChanged = false;
+
+    /**
+     * Listens to the bounds of the children.
+     */
+    private final PropertyChangeListener childListener = new PropertyChangeListener() {
+        public void propertyChange(PropertyChangeEvent evt) {
+            Integer index = indices.get((PNode) evt.getSource());
+            if (index != null) {
+                invalidate(index, index);
+            }
+        }
+    };
+
+    public IncrementalLayoutNode() {
+        addPropertyChangeListener(PNode.PROPERTY_CHILDREN, new PropertyChangeListener() {
+            public void propertyChange(PropertyChangeEvent evt) {
+                childrenChanged = true;
+                invalidateLayout();
+            }
+        });
+        addPropertyChangeListener(PNode.PROPERTY_BOUNDS, new PropertyChangeListener() {
+            public void propertyChange(PropertyChangeEvent evt) {
+                invalidate(0, Integer.MAX_VALUE);
+            }
+        });
+    }
+
+    /**
+     * Mark the children from index from to index to (inclusive) as needing
+     * to be laid out again.
+     */
+    private void invalidate(int from, int to) {
+        if (dirtyFrom == -1) {
+            dirtyFrom = from;
+            dirtyTo = to;
+        } else {
+            dirtyFrom = Math.min(dirtyFrom, from);
+            dirtyTo = Math.max(dirtyTo, to);
+        }
+        invalidateLayout();
+    }
+
+    /**
+     * Bring laidOut up to date with the current children, invalidating every
+     * child from the first one that differs.
+     */
+    private void syncChildren() {
+        int count = getChildrenCount();
+        int first = 0;
+        while (first < count && first < laidOut.size()
+                && laidOut.get(first) == getChild(first)) {
+            first++;
+        }
+        if (first == count && first == laidOut.size()) {
+            return;
+        }
+        for (int i = first; i < laidOut.size(); i++) {
+            PNode old = laidOut.get(i);
+            old.removePropertyChangeListener(PNode.PROPERTY_BOUNDS, childListener);
+            indices.remove(old);
+        }
+        while (laidOut.size() > first) {
+            laidOut.remove(laidOut.size() - 1);
+        }
+        for (int i = first; i < count; i++) {
+            PNode child = getChild(i);
+            child.addPropertyChangeListener(PNode.PROPERTY_BOUNDS, childListener);
+            indices.put(child, i);
+            laidOut.add(child);
+        }
+        // If children were only removed from the end the last remaining child
+        // still needs laying out, e.g. its row may now be shorter.
+        invalidate(Math.max(0, Math.min(first, count - 1)), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void layoutChildren() {
+        if (childrenChanged) {
+            childrenChanged = false;
+            syncChildren();
+        }
+        if (dirtyFrom == -1) {
+            return;
+        }
+        int from = dirtyFrom;
+        int to = dirtyTo;
+        dirtyFrom = -1;
+        dirtyTo = -1;
+        int last = getChildrenCount() - 1;
+        if (last >= 0) {
+            layout(Math.min(from, last), Math.min(to, last));
+        } else {
+            layout(0, -1);
+        }
+    }
+
+    /**
+     * Lay out the children from index from to index to (inclusive), which
+     * have changed since the last layout, and any other children whose
+     * position depends on them. Children before from are where the previous
+     * layout put them. When there are no children from is 0 and to is -1.
+     */
+    protected abstract void layout(int from, int to);
+}
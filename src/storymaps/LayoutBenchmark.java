@@ -0,0 +1,87 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import edu.umd.cs.piccolo.PNode;
+import edu.umd.cs.piccolo.nodes.PPath;
+import java.util.Random;
+
+/**
+ * Times CentreAlignedRowsLayoutNode and GridLayoutNode with thousands of
+ * children: building the layout one child at a time, laying out after one
+ * child in the middle changes size, and the no-op layout Piccolo does every
+ * time it validates the node's bounds.
+ *
+ * Usage: LayoutBenchmark [children]
+ *
+ * @author seanh
+ */
+public class LayoutBenchmark {
+
+    private static final int ITERATIONS = 200;
+
+    public static void main(String[] args) {
+        int children = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        // Run everything once before timing it, to give the JIT a chance to
+        // compile it.
+        run(children, false);
+        run(children, true);
+    }
+
+    private static void run(int children, boolean print) {
+        CentreAlignedRowsLayoutNode rows = new CentreAlignedRowsLayoutNode(5);
+        rows.setBounds(0, 0, 1000, 1000);
+        time("rows", rows, children, print);
+        time("grid", new GridLayoutNode(10, 5), children, print);
+    }
+
+    private static void time(String name, IncrementalLayoutNode layout,
+            int children, boolean print) {
+        Random random = new Random(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < children; i++) {
+            layout.addChild(PPath.createRectangle(0, 0,
+                    40 + random.nextInt(40), 40 + random.nextInt(40)));
+            layout.layoutChildren();
+        }
+        long build = System.nanoTime() - start;
+
+        PNode middle = layout.getChild(children / 2);
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            middle.setBounds(0, 0, 40 + i % 40, 40 + i % 40);
+            layout.layoutChildren();
+        }
+        long resize = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            layout.layoutChildren();
+        }
+        long noop = System.nanoTime() - start;
+
+        if (print) {
+            System.out.println(name + ", " + children + " children:");
+            System.out.println("  add one at a time: " + build / 1000000 + "ms total");
+            System.out.println("  resize one child:  " + resize / ITERATIONS / 1000 + "us per layout");
+            System.out.println("  nothing changed:   " + noop / ITERATIONS + "ns per layout");
+        }
+    }
+}
@@ -54,6 +54,12 @@ import java.io.Serializable;
  * 
  * * Minimise the time and space needed to copy information into a memento by
  *   minimising the amount of information contained in a memento.
+ *
+ * * Declare a serialVersionUID. Stories saved by older versions of StoryMaps
+ *   are serialized mementos, and without an explicit serialVersionUID any
+ *   change to a memento class (even adding a method) makes them unreadable.
+ *   The existing memento classes declare the value that Java computed for
+ *   them before they had one.
  * 
  * @author seanh
  */
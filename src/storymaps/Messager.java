@@ -20,39 +20,109 @@
 */
 package storymaps;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Passive helper class for Messager. A Subscription object just wraps a
  * Receiver object and an receiver's argument Object in one class.
  * 
+ * The receiver is only weakly referenced, so that subscribing to a message
+ * doesn't keep the receiver (and everything it refers to) alive. Once the
+ * receiver has been garbage collected getReceiver returns null.
+ * 
  * @author seanh
  */
-class Subscription {
-    private Receiver r;
-    private Object arg;
-    public Subscription(Receiver r, Object arg) {
-        this.r =r;
+class Subscription extends WeakReference<Receiver> {
+    private final Object arg;
+    private final Delivery delivery;
+    private final MessagerMetrics.Histogram latency;
+
+    /**
+     * For Delivery.coalesced: whether a delivery is scheduled, and the latest
+     * message argument for it to deliver.
+     */
+    final AtomicBoolean pending = new AtomicBoolean();
+    volatile Object latest;
+
+    public Subscription(Receiver r, Object arg, Delivery delivery,
+            MessagerMetrics.Histogram latency, ReferenceQueue<Object> q) {
+        super(r, q);
         this.arg = arg;
+        this.delivery = delivery;
+        this.latency = latency;
     }
     public Receiver getReceiver() {
-        return r;
+        return get();
     }
     public Object getArg() {
         return arg;
     }
+    public Delivery getDelivery() {
+        return delivery;
+    }
+    public MessagerMetrics.Histogram getLatency() {
+        return latency;
+    }
     @Override
     public String toString() {
-        String s = "Receiver: " + r + "\n";
-        s = s + "  receiver's arg: " + arg;
+        String s = "Receiver: " + get() + "\n";
+        s = s + "  receiver's arg: " + arg + "\n";
+        s = s + "  delivery: " + delivery;
         return s;
     }
 }
 
+/**
+ * Passive helper class for Messager. A key object for a keyed subscription,
+ * weakly referenced and compared by identity.
+ * 
+ * @author seanh
+ */
+class SubscriptionKey extends WeakReference<Object> {
+    private final int hash;
+    SubscriptionKey(Object key, ReferenceQueue<Object> q) {
+        super(key, q);
+        hash = System.identityHashCode(key);
+    }
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof SubscriptionKey)) {
+            return false;
+        }
+        Object key = get();
+        return key != null && key == ((SubscriptionKey) obj).get();
+    }
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
+
 /**
  * An incredibly useful (if not very java-like) singleton message-passing class.
  * 
+ * Messages are sent to a Topic, which holds its receivers' subscriptions, so
+ * sending a message is a walk over an array with no lookup and no
+ * allocation. Every method can be called from any thread: subscribing and
+ * unsubscribing replace a topic's array instead of changing it, so a message
+ * that is being sent while a receiver subscribes goes to the receivers that
+ * were subscribed when the send started. Receivers are called on the thread
+ * that sends the message, unless they subscribed with a different Delivery.
+ * 
+ * The messager only holds weak references to receivers and to the keys of
+ * keyed subscriptions, so a story map or story card that is thrown away can
+ * be garbage collected without unsubscribing. The subscriptions of collected
+ * receivers are purged the next time a receiver subscribes.
+ * 
  * @author seanh
  */
 final public class Messager { // Class is final so it can't be subclassed.
@@ -63,25 +133,18 @@ final public class Messager { // Class is final so it can't be subclassed.
     private static Messager m = new Messager();
 
     /**
-     * A HashMap that maps message names (Strings) to lists of Subscription
-     * objects. Every time a Receiver subscribes to a message name using the
-     * accept method a Subscription object is added to the appropriate list.
+     * If verbose, the messager will do a System.out.println whenever it
+     * receives a message or a message subscription. For debugging.
      */
-    private HashMap<String,ArrayList<Subscription>> subscriptions
-            = new HashMap<String,ArrayList<Subscription>>();
+    private volatile boolean verbose = false;
+
+    private final MessagerMetrics metrics = new MessagerMetrics();
 
     /**
-     * Same as the above field subscriptions, but for the one-time subscriptions
-     * made using the acceptOnce method.
-     */
-    private HashMap<String,ArrayList<Subscription>> one_time_subscriptions
-            = new HashMap<String,ArrayList<Subscription>>();
-    
-    /**
-     * If verbose, the messager will do a System.out.println whenever it
-     * receives a message or a message subscription. For debugging.
+     * The queue that the references to collected receivers and keys are put
+     * on by the garbage collector.
      */
-    private boolean verbose = false;
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
         
     private Messager() { // Constructor is private, no other class can use it.
         
@@ -95,100 +158,243 @@ final public class Messager { // Class is final so it can't be subclassed.
     public static Messager getMessager() {
         return m;
     }
+
+    /**
+     * Get the counts of messages sent and the receivers' handling times.
+     */
+    MessagerMetrics getMetrics() {
+        return metrics;
+    }
     
     /**
-     * Send a message with the given name and the given argument, all receivers
-     * subscribed to the message name will be notified and passed the message
+     * Send a message to the given topic with the given argument, all receivers
+     * subscribed to the topic will be notified and passed the message
      * argument.
      * 
-     * @param name  The name of the message to send
+     * @param topic The topic of the message to send
      * @param arg   The object to pass to the receive methods as sender_arg 
      */
-    public void send(String name, Object arg) {        
+    public void send(Topic topic, Object arg) {        
+        topic.sent.incrementAndGet();
         if (verbose) {
-            System.out.println("Sending message: " + name);
+            System.out.println("Sending message: " + topic);
         }
         
-        if (subscriptions.containsKey(name)) {        
-            for (Subscription s : subscriptions.get(name)) {
-                Receiver r = s.getReceiver();
-                r.receive(name,s.getArg(),arg);
-                if (verbose) {
-                    System.out.println("   Sent to " + r);
-                }
+        Subscription[] subscriptions = topic.subscriptions;
+        deliver(subscriptions, topic, arg, "");
+        
+        AtomicReference<Subscription[]> once = topic.oneTimeSubscriptions;
+        if (once.get().length != 0) {
+            subscriptions = once.getAndSet(Topic.NONE);
+            deliver(subscriptions, topic, arg, " (one time)");
+        }        
+    }
+
+    /**
+     * Send a message about the given key object to the given topic with the
+     * given argument. The receivers subscribed to the topic for that key are
+     * notified, followed by the receivers subscribed to the topic as a whole.
+     * 
+     * @param topic The topic of the message to send
+     * @param key   The object the message is about
+     * @param arg   The object to pass to the receive methods as sender_arg 
+     */
+    public void send(Topic topic, Object key, Object arg) {
+        // Keyed subscriptions are looked up with an unqueued key, which is
+        // the only allocation in sending a message.
+        Subscription[] subscriptions =
+                topic.keyedSubscriptions.get(new SubscriptionKey(key, null));
+        if (subscriptions != null) {
+            if (verbose) {
+                System.out.println("Sending message: " + topic + " about " + key);
             }
+            deliver(subscriptions, topic, arg, "");
         }
-        
-        if (one_time_subscriptions.containsKey(name)) {        
-            for (Subscription s : one_time_subscriptions.get(name)) {
+        send(topic, arg);
+    }
+    
+    private void deliver(Subscription[] subscriptions, Topic topic,
+            Object arg, String note) {
+        if (subscriptions.length == 0) {
+            return;
+        }
+        // Each synchronous receiver is timed from the end of the previous
+        // one, so the clock is read once per receiver rather than twice.
+        boolean timing = metrics.isTiming();
+        long start = timing ? System.nanoTime() : 0;
+        for (int i = 0; i < subscriptions.length; i++) {
+            Subscription s = subscriptions[i];
+            Delivery delivery = s.getDelivery();
+            if (delivery == Delivery.SYNCHRONOUS) {
                 Receiver r = s.getReceiver();
-                r.receive(name,s.getArg(),arg);
-                if (verbose) {
-                    System.out.println("   Sent to " + r + " (one time)");
+                if (r != null) {
+                    r.receive(topic,s.getArg(),arg);
+                    if (timing) {
+                        long end = System.nanoTime();
+                        metrics.handled(s.getLatency(), r, end - start);
+                        start = end;
+                    }
+                }
+            } else {
+                delivery.deliver(s, topic, arg);
+                if (timing) {
+                    start = System.nanoTime();
                 }
             }
-            one_time_subscriptions.remove(name);
-        }        
+            if (verbose) {
+                System.out.println("   Sent to " + s.getReceiver() + note + " (" + delivery + ")");
+                if (timing) {
+                    start = System.nanoTime();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Call the subscription's receiver, if it hasn't been garbage collected,
+     * and record how long it took.
+     */
+    void receive(Subscription s, Topic topic, Object arg) {
+        Receiver r = s.getReceiver();
+        if (r == null) {
+            return;
+        }
+        if (!metrics.isTiming()) {
+            r.receive(topic,s.getArg(),arg);
+            return;
+        }
+        long start = System.nanoTime();
+        r.receive(topic,s.getArg(),arg);
+        metrics.handled(s.getLatency(), r, System.nanoTime() - start);
+    }
+
+    private Subscription subscription(Topic topic, Receiver r, Object arg,
+            Delivery delivery) {
+        return new Subscription(r, arg, delivery,
+                metrics.histogram(topic, r.getClass()), collected);
     }
     
     /**
-     * Register with the messager to receive messages with the given name, the
+     * Register with the messager to receive messages to the given topic, the
      * messager will call the receiver's receive method to notify of each 
      * message sent.
      * 
-     * @param name  The message name to subscribe to
+     * @param topic The topic to subscribe to
+     * @param r     The receiver to subscribe
+     * @param arg   The object to pass to the receive method as receiver_arg
+     */
+    public void accept(Topic topic, Receiver r, Object arg) {
+        accept(topic, r, arg, Delivery.SYNCHRONOUS);
+    }
+
+    /**
+     * Register with the messager to receive messages to the given topic,
+     * delivered in the given way.
+     * 
+     * @param topic    The topic to subscribe to
+     * @param r        The receiver to subscribe
+     * @param arg      The object to pass to the receive method as receiver_arg
+     * @param delivery When and on which thread to call the receive method
+     */
+    public void accept(Topic topic, Receiver r, Object arg, Delivery delivery) {
+        purge();
+        Subscription s = subscription(topic,r,arg,delivery);
+        synchronized (topic) {
+            topic.subscriptions = append(topic.subscriptions, s);
+        }
+        if (verbose) {
+            System.out.println(r + " subscribed to event " + topic + " with argument " + arg + " (" + delivery + ")");
+        }
+    }
+
+    /**
+     * Register with the messager to receive only the messages to the given
+     * topic that are about the given key object, i.e. that are sent with
+     * send(topic, key, arg).
+     * 
+     * @param topic The topic to subscribe to
+     * @param key   The object whose messages to subscribe to
      * @param r     The receiver to subscribe
      * @param arg   The object to pass to the receive method as receiver_arg
      */
-    public void accept(String name, Receiver r, Object arg) {
-        if (!subscriptions.containsKey(name)){
-            subscriptions.put(name,new ArrayList<Subscription>());
+    public void acceptFor(Topic topic, Object key, Receiver r, Object arg) {
+        purge();
+        Subscription s = subscription(topic,r,arg,Delivery.SYNCHRONOUS);
+        SubscriptionKey k = new SubscriptionKey(key,collected);
+        synchronized (topic) {
+            Subscription[] subscriptions = topic.keyedSubscriptions.get(k);
+            if (subscriptions == null) {
+                subscriptions = Topic.NONE;
+            }
+            topic.keyedSubscriptions.put(k, append(subscriptions, s));
         }
-        Subscription s = new Subscription(r,arg);
-        subscriptions.get(name).add(s);
         if (verbose) {
-            System.out.println(r + " subscribed to event " + name + " with argument " + arg);
+            System.out.println(r + " subscribed to event " + topic + " about " + key + " with argument " + arg);
         }
     }
 
     /**
-     * Register with the messager to receive the next message only with the
-     * given name, the messager will call the receiver's receive method to
+     * Register with the messager to receive the next message only to the
+     * given topic, the messager will call the receiver's receive method to
      * notify when the message is sent.
-     * a string listing all of the subscriptions held by the messager.
-     * @param name  The message name to subscribe to
+     * 
+     * @param topic The topic to subscribe to
      * @param r     The receiver to subscribe
      * @param arg   The object to pass to the receive method as receiver_arg
      */
-    public void acceptOnce(String name, Receiver r, Object arg) {
-        if (!one_time_subscriptions.containsKey(name)){
-            one_time_subscriptions.put(name,new ArrayList<Subscription>());
-        }
-        Subscription s = new Subscription(r,arg);
-        one_time_subscriptions.get(name).add(s);
+    public void acceptOnce(Topic topic, Receiver r, Object arg) {
+        purge();
+        Subscription s = subscription(topic,r,arg,Delivery.SYNCHRONOUS);
+        AtomicReference<Subscription[]> once = topic.oneTimeSubscriptions;
+        Subscription[] old;
+        do {
+            old = once.get();
+        } while (!once.compareAndSet(old, append(old, s)));
         if (verbose) {
-            System.out.println(r + " subscribed to event " + name + " with argument " + arg + " once only ");
+            System.out.println(r + " subscribed to event " + topic + " with argument " + arg + " once only ");
         }
     }
  
     /**
      * Remove all subscriptions made by the given receiver object to the given
-     * message name.
+     * topic, including those for particular keys.
      * 
-     * @param name  The message name to unsubscribe from
+     * @param topic The topic to unsubscribe from
      * @param r     The receiver to unsubscribe
      */
-    public void ignore(String name, Receiver r) {        
-        if (subscriptions.containsKey(name)) {
-            ArrayList<Subscription> new_subscriptions = 
-                                                  new ArrayList<Subscription>();
-            for (Subscription s : subscriptions.get(name)) {
-                if (!(s.getReceiver() == r)) {
-                    new_subscriptions.add(s);
-                }
+    public void ignore(Topic topic, Receiver r) {        
+        synchronized (topic) {
+            topic.subscriptions = remove(topic.subscriptions, r);
+            for (SubscriptionKey key : topic.keyedSubscriptions.keySet()) {
+                ignore(topic, key, r);
+            }
+        }
+    }
+
+    /**
+     * Remove the subscriptions made by the given receiver object to the given
+     * topic for the given key.
+     * 
+     * @param topic The topic to unsubscribe from
+     * @param key   The object whose messages to unsubscribe from
+     * @param r     The receiver to unsubscribe
+     */
+    public void ignore(Topic topic, Object key, Receiver r) {
+        ignore(topic, new SubscriptionKey(key, null), r);
+    }
+
+    private void ignore(Topic topic, SubscriptionKey key, Receiver r) {
+        synchronized (topic) {
+            Subscription[] subscriptions = topic.keyedSubscriptions.get(key);
+            if (subscriptions == null) {
+                return;
+            }
+            subscriptions = remove(subscriptions, r);
+            if (subscriptions.length == 0 || key.get() == null) {
+                topic.keyedSubscriptions.remove(key);
+            } else {
+                topic.keyedSubscriptions.put(key, subscriptions);
             }
-            // Replace the old list of subscriptions for name with the new one.
-            subscriptions.put(name,new_subscriptions);
         }
     }
 
@@ -198,17 +404,103 @@ final public class Messager { // Class is final so it can't be subclassed.
      * @param r     The receiver to unsubscribe
      */
     public void ignoreAll(Receiver r) {
-        // TODO.
+        for (Topic topic : Topic.all()) {
+            ignore(topic, r);
+        }
     }
     
     /**
      * Clear all subscriptions with the messager.
      */
     public void clear() {
-        subscriptions = new HashMap<String,ArrayList<Subscription>>();
-        one_time_subscriptions = new HashMap<String,ArrayList<Subscription>>();
+        for (Topic topic : Topic.all()) {
+            synchronized (topic) {
+                topic.subscriptions = Topic.NONE;
+                topic.keyedSubscriptions.clear();
+            }
+            topic.oneTimeSubscriptions.set(Topic.NONE);
+        }
     }
-    
+
+    /**
+     * If any receivers or keys have been garbage collected since the last
+     * purge, remove their subscriptions from every topic.
+     */
+    private void purge() {
+        if (collected.poll() == null) {
+            return;
+        }
+        while (collected.poll() != null) {
+            // Empty the queue, every topic is purged below.
+        }
+        for (Topic topic : Topic.all()) {
+            // Removing the null receiver removes only the collected ones.
+            ignore(topic, null);
+            AtomicReference<Subscription[]> once = topic.oneTimeSubscriptions;
+            Subscription[] old;
+            do {
+                old = once.get();
+            } while (!once.compareAndSet(old, remove(old, null)));
+        }
+    }
+
+    /**
+     * Return the number of live receivers subscribed to each topic that has
+     * any, counting keyed and one-time subscriptions. Subscriptions of
+     * receivers that have been garbage collected are purged first, so this
+     * shows whether old receivers are being let go of.
+     */
+    public Map<Topic,Integer> getSubscriberCounts() {
+        purge();
+        Map<Topic,Integer> counts = new LinkedHashMap<Topic,Integer>();
+        for (Topic topic : Topic.all()) {
+            int n = countLive(topic.subscriptions)
+                    + countLive(topic.oneTimeSubscriptions.get());
+            for (Subscription[] keyed : topic.keyedSubscriptions.values()) {
+                n += countLive(keyed);
+            }
+            if (n > 0) {
+                counts.put(topic, n);
+            }
+        }
+        return counts;
+    }
+
+    private static int countLive(Subscription[] subscriptions) {
+        int n = 0;
+        for (Subscription s : subscriptions) {
+            if (s.getReceiver() != null) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static Subscription[] append(Subscription[] subscriptions, Subscription s) {
+        Subscription[] appended = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+        appended[subscriptions.length] = s;
+        return appended;
+    }
+
+    /**
+     * Return the subscriptions that weren't made by r, leaving out those
+     * whose receivers have been garbage collected.
+     */
+    private static Subscription[] remove(Subscription[] subscriptions, Receiver r) {
+        Subscription[] kept = new Subscription[subscriptions.length];
+        int n = 0;
+        for (Subscription s : subscriptions) {
+            Receiver receiver = s.getReceiver();
+            if (receiver != null && receiver != r) {
+                kept[n++] = s;
+            }
+        }
+        if (n == subscriptions.length) {
+            return subscriptions;
+        }
+        return n == 0 ? Topic.NONE : Arrays.copyOf(kept, n);
+    }
+
     /**
      * Return a string listing all of the subscriptions held by the messager.
      * 
@@ -217,9 +509,19 @@ final public class Messager { // Class is final so it can't be subclassed.
     @Override
     public String toString() {
         String s = "Subscriptions:\n";
-        s = s + subscriptions + "\n";
+        for (Topic topic : Topic.all()) {
+            s = s + topic + ": " + Arrays.toString(topic.subscriptions) + "\n";
+            for (SubscriptionKey key : topic.keyedSubscriptions.keySet()) {
+                Subscription[] keyed = topic.keyedSubscriptions.get(key);
+                if (keyed != null) {
+                    s = s + topic + " about " + key.get() + ": " + Arrays.toString(keyed) + "\n";
+                }
+            }
+        }
         s = s + "One-time subscriptions:\n";
-        s = s + one_time_subscriptions + "\n";
+        for (Topic topic : Topic.all()) {
+            s = s + topic + ": " + Arrays.toString(topic.oneTimeSubscriptions.get()) + "\n";
+        }
         return s;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,155 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Times sending a message through the Messager against the way it used to
+ * be done, looking the subscriptions up by message name in a HashMap and
+ * having each receiver compare the name against the names it handles. The
+ * Messager is timed with and without measuring the receivers' handling
+ * times.
+ *
+ * Usage: MessagerBenchmark [receivers]
+ *
+ * @author seanh
+ */
+public class MessagerBenchmark {
+
+    private static final int SENDS = 2000000;
+
+    /**
+     * The names the receivers compare against before they find the one that
+     * was sent, like Application.receive does.
+     */
+    private static final String[] NAMES = {"StoryCard double-clicked",
+        "Editor uncollapsed", "Editor collapsed", "sort"};
+
+    private static final Topic[] TOPICS = {Topic.STORYCARD_DOUBLE_CLICKED,
+        Topic.EDITOR_UNCOLLAPSED, Topic.EDITOR_COLLAPSED, Topic.SORT};
+
+    /**
+     * The old Messager.send: subscriptions in lists in a HashMap by name.
+     */
+    private static final class NamedMessager {
+        private final HashMap<String,ArrayList<Object>> subscriptions =
+                new HashMap<String,ArrayList<Object>>();
+
+        void accept(String name, Counter c) {
+            if (!subscriptions.containsKey(name)) {
+                subscriptions.put(name, new ArrayList<Object>());
+            }
+            subscriptions.get(name).add(c);
+        }
+
+        void send(String name, Object arg) {
+            if (subscriptions.containsKey(name)) {
+                for (Object o : subscriptions.get(name)) {
+                    ((Counter) o).receive(name, arg);
+                }
+            }
+        }
+    }
+
+    private static final class Counter implements Receiver {
+        int received;
+
+        void receive(String name, Object sender_arg) {
+            if (name.equals(NAMES[0])) {
+                received += 1;
+            } else if (name.equals(NAMES[1])) {
+                received += 2;
+            } else if (name.equals(NAMES[2])) {
+                received += 3;
+            } else if (name.equals(NAMES[3])) {
+                received += 4;
+            }
+        }
+
+        public void receive(Topic topic, Object receiver_arg, Object sender_arg) {
+            if (topic == TOPICS[0]) {
+                received += 1;
+            } else if (topic == TOPICS[1]) {
+                received += 2;
+            } else if (topic == TOPICS[2]) {
+                received += 3;
+            } else if (topic == TOPICS[3]) {
+                received += 4;
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int receivers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        // Run everything once before timing it, to give the JIT a chance to
+        // compile it.
+        run(receivers, false);
+        run(receivers, true);
+    }
+
+    private static void run(int receivers, boolean print) {
+        Counter named = new Counter();
+        NamedMessager old = new NamedMessager();
+        Counter topical = new Counter();
+        Messager m = Messager.getMessager();
+        m.clear();
+        for (int i = 0; i < receivers; i++) {
+            for (int j = 0; j < NAMES.length; j++) {
+                old.accept(NAMES[j], named);
+                m.accept(TOPICS[j], topical, null);
+            }
+        }
+        // Send the last name each receiver checks for, as a copy so that
+        // String.equals can't short-cut on identity, the way a name built
+        // at run time would be sent.
+        String name = new String(NAMES[NAMES.length - 1]);
+        Topic topic = TOPICS[TOPICS.length - 1];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < SENDS; i++) {
+            old.send(name, null);
+        }
+        long byName = System.nanoTime() - start;
+
+        m.getMetrics().setTiming(false);
+        start = System.nanoTime();
+        for (int i = 0; i < SENDS; i++) {
+            m.send(topic, null);
+        }
+        long byTopic = System.nanoTime() - start;
+
+        m.getMetrics().setTiming(true);
+        start = System.nanoTime();
+        for (int i = 0; i < SENDS; i++) {
+            m.send(topic, null);
+        }
+        long timed = System.nanoTime() - start;
+        m.clear();
+
+        if (print) {
+            System.out.println(receivers + " receivers per message:");
+            System.out.println("  by name:  " + byName / (SENDS / 1000) + "ps per send (" + named.received + ")");
+            System.out.println("  by topic: " + byTopic / (SENDS / 1000) + "ps per send (" + topical.received / 2 + ")");
+            System.out.println("  by topic, timing receivers: " + timed / (SENDS / 1000) + "ps per send");
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+
+/**
+ * Counts the messages sent to each topic and times how long each kind of
+ * receiver takes to handle them, to find the receivers that make the user
+ * interface janky.
+ * 
+ * Handling times are kept in a histogram per topic and receiver class (all
+ * the story cards share one histogram for drag started, for example). Each
+ * subscription holds on to its histogram, so recording a time is a couple of
+ * atomic increments, but the clock has to be read after each receiver, so
+ * timing can be switched off. A receiver that takes longer than the slow
+ * threshold to handle a message on the event dispatch thread is logged as a
+ * warning.
+ * 
+ * @author seanh
+ */
+final class MessagerMetrics {
+
+    /**
+     * A histogram of handling times, in power-of-two buckets of
+     * microseconds: bucket 0 counts times under 1us, bucket i times from
+     * 2^(i-1)us up to 2^i us, and the last bucket everything longer.
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 22;
+
+        private final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        Histogram(String name) {
+            this.name = name;
+        }
+
+        void record(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+            totalNanos.addAndGet(nanos);
+            long max;
+            do {
+                max = maxNanos.get();
+            } while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+        }
+
+        String getName() { return name; }
+        long getCount() {
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                n += buckets.get(i);
+            }
+            return n;
+        }
+        long getMaxMicros() { return maxNanos.get() / 1000; }
+        long getMeanMicros() {
+            long n = getCount();
+            return n == 0 ? 0 : totalNanos.get() / n / 1000;
+        }
+
+        /**
+         * Return the upper bound, in microseconds, of the bucket that the
+         * given fraction of the times fall at or under.
+         */
+        long getPercentileMicros(double fraction) {
+            long n = getCount();
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen > 0 && seen >= fraction * n) {
+                    return 1L << i;
+                }
+            }
+            return 1L << BUCKETS;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": n=" + getCount() + " mean=" + getMeanMicros()
+                    + "us p50<" + getPercentileMicros(0.5) + "us p99<"
+                    + getPercentileMicros(0.99) + "us max=" + getMaxMicros()
+                    + "us";
+        }
+    }
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final long start = System.nanoTime();
+
+    private final ConcurrentHashMap<String,Histogram> histograms =
+            new ConcurrentHashMap<String,Histogram>();
+
+    private volatile long slowNanos = 50 * 1000000L;
+
+    private volatile boolean timing = true;
+
+    /**
+     * Return the histogram for receivers of the given class handling the
+     * given topic.
+     */
+    Histogram histogram(Topic topic, Class<?> receiverClass) {
+        String name = topic + " -> " + receiverClass.getName();
+        Histogram h = histograms.get(name);
+        if (h == null) {
+            Histogram created = new Histogram(name);
+            h = histograms.putIfAbsent(name, created);
+            if (h == null) {
+                h = created;
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Record that a receiver took the given time to handle a message, and
+     * warn if it held up the event dispatch thread for too long.
+     */
+    void handled(Histogram histogram, Receiver r, long nanos) {
+        histogram.record(nanos);
+        if (nanos > slowNanos && SwingUtilities.isEventDispatchThread()) {
+            logger.warning("Slow receiver on the event dispatch thread: "
+                    + r + " took " + nanos / 1000000 + "ms to handle "
+                    + histogram.getName() + ".");
+        }
+    }
+
+    /**
+     * Return whether receivers' handling times are being measured.
+     */
+    boolean isTiming() {
+        return timing;
+    }
+
+    /**
+     * Start or stop measuring receivers' handling times. Messages sent to
+     * each topic are counted either way.
+     */
+    void setTiming(boolean timing) {
+        this.timing = timing;
+    }
+
+    /**
+     * Set how long (in milliseconds) a receiver can take to handle a message
+     * on the event dispatch thread before it is logged as slow.
+     */
+    void setSlowThreshold(long millis) {
+        slowNanos = millis * 1000000L;
+    }
+
+    /**
+     * Return the histograms of every topic and receiver class that has
+     * handled a message, slowest first.
+     */
+    List<Histogram> getHistograms() {
+        List<Histogram> list = new ArrayList<Histogram>();
+        for (Histogram h : histograms.values()) {
+            if (h.getCount() > 0) {
+                list.add(h);
+            }
+        }
+        Collections.sort(list, new Comparator<Histogram>() {
+            public int compare(Histogram a, Histogram b) {
+                long d = b.getMaxMicros() - a.getMaxMicros();
+                return d < 0 ? -1 : (d > 0 ? 1 : 0);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Return a report of the number of messages sent to each topic, their
+     * rate since the application started and the receivers' handling times.
+     */
+    @Override
+    public String toString() {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        StringBuilder s = new StringBuilder();
+        s.append("Messages sent in ").append(String.format("%.0f", seconds)).append("s:\n");
+        for (Topic topic : Topic.all()) {
+            long sent = topic.getSentCount();
+            if (sent > 0) {
+                s.append("  ").append(topic).append(": ").append(sent)
+                        .append(String.format(" (%.2f/s)", sent / seconds))
+                        .append('\n');
+            }
+        }
+        s.append("Handling times:\n");
+        for (Histogram h : getHistograms()) {
+            s.append("  ").append(h).append('\n');
+        }
+        return s.toString();
+    }
+
+    /**
+     * Write the report to the given file, replacing what was there before.
+     */
+    void dump(File file) throws IOException {
+        Writer out = Util.openTextFile(file.getAbsolutePath());
+        try {
+            out.write(toString());
+        } finally {
+            out.close();
+        }
+    }
+}
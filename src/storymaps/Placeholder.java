@@ -20,24 +20,65 @@
 */
 package storymaps;
 
-import edu.umd.cs.piccolo.nodes.PImage;
 import java.util.logging.Logger;
 
-class Placeholder extends StoryCardBase implements Originator {
+/**
+ * A slot in a story map that a story card can be placed on.
+ *
+ * A placeholder is just a record of its position and the story card on it,
+ * if any, not a node in the scene graph, so a story map can have as many as
+ * it needs.
+ */
+class Placeholder implements Originator {
             
-    private PImage background;
     private boolean taken = false;
     private StoryCard storycard = null;
-    
-    public Placeholder() {
-        super(Function.getFunctions().get(0));
-        getNode().addAttribute("Placeholder",this);
-        getNode().setVisible(false);
+
+    /**
+     * The index this placeholder belongs to, if any, and its number there.
+     */
+    private PlaceholderIndex index = null;
+    private int slot;
+
+    /**
+     * The offset given to a story card placed on this placeholder, in the
+     * coordinate system of the story map's overlay node.
+     */
+    private double x = 0;
+    private double y = 0;
+
+
+    double getX() {
+        return x;
+    }
+
+    double getY() {
+        return y;
+    }
+
+    void setPosition(double x, double y) {
+        this.x = x;
+        this.y = y;
     }
                                      
     public boolean taken() {
         return taken;
     }    
+
+    /**
+     * Tell index whenever this placeholder is taken or cleared.
+     */
+    void setIndex(PlaceholderIndex index, int slot) {
+        this.index = index;
+        this.slot = slot;
+    }
+
+    /**
+     * Return this placeholder's number in its index.
+     */
+    int getSlot() {
+        return slot;
+    }
         
     public StoryCard getStoryCard() {
         return storycard;
@@ -47,14 +88,23 @@ class Placeholder extends StoryCardBase implements Originator {
         if (s == null) {
             clearStoryCard();
         } else {
+            if (taken) {
+                clearStoryCard();
+            }
             s.getNode().addAttribute("Placeholder",this);            
             storycard = s;
             taken = true;
+            if (index != null) {
+                index.taken(slot, s.getFunction());
+            }
         }
     }
     
     public void clearStoryCard() {
         storycard.getNode().addAttribute("Placeholder",null);
+        if (index != null) {
+            index.cleared(slot, storycard.getFunction());
+        }
         storycard = null;
         taken = false;
     }
@@ -63,6 +113,8 @@ class Placeholder extends StoryCardBase implements Originator {
     // --------------------
     
     private static final class PlaceholderMemento implements Memento {
+        private static final long serialVersionUID = -8562746642831276397L;
+
         // No need to defensively copy anything as StoryCardMemento should be
         // immutable.
         private final Memento storyCardMemento;
@@ -102,4 +154,22 @@ class Placeholder extends StoryCardBase implements Originator {
         }        
         return p;
     }
-}    
\ No newline at end of file
+
+    /**
+     * Return the slot recorded in a Placeholder memento, without constructing
+     * a Placeholder.
+     */
+    static StoryState.Slot slotFromMemento(Memento m) throws MementoException {
+        if (!(m instanceof PlaceholderMemento)) {
+            String detail = "Wrong type of memento object.";
+            MementoException e = new MementoException(detail);
+            Logger.getLogger(Placeholder.class.getName()).throwing("Placeholder", "slotFromMemento", e);
+            throw e;
+        }
+        Memento scm = ((PlaceholderMemento) m).getStoryCardMemento();
+        if (scm == null) {
+            return new StoryState.Slot(-1, null);
+        }
+        return StoryCard.slotFromMemento(scm);
+    }
+}
@@ -0,0 +1,300 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid over the positions of a story map's placeholders, for
+ * finding the nearest free placeholder to a point.
+ *
+ * Positions are the placeholders' positions, i.e. in the coordinate system
+ * of the story map's overlay node. Moving the camera or the story map doesn't
+ * change them, so the cached positions only go stale when placeholders are
+ * added or moved, and then the grid is rebuilt the next time it is queried.
+ *
+ * Each placeholder tells the index when it's taken or cleared, and the index
+ * keeps a count of the free placeholders in each cell so that full cells are
+ * skipped without looking at their placeholders. It also counts the story
+ * cards on the placeholders by function number, so whether a story map
+ * already has a card for a function is answered without a scan. Queries
+ * don't allocate.
+ *
+ * @author seanh
+ */
+final class PlaceholderIndex {
+
+    private Placeholder[] placeholders = new Placeholder[16];
+    private int size = 0;
+
+    /**
+     * The cached position of each placeholder and whether it is free.
+     */
+    private double[] xs = new double[16];
+    private double[] ys = new double[16];
+    private boolean[] free = new boolean[16];
+    private int freeCount = 0;
+
+    /**
+     * The number of story cards on the placeholders for each function
+     * number.
+     */
+    private int[] functionCounts = new int[32];
+
+    /**
+     * The grid. The placeholders in cell c are cellItems[cellStarts[c]] up to
+     * (but not including) cellItems[cellStarts[c+1]]. Cells are numbered row
+     * by row.
+     */
+    private double minX;
+    private double minY;
+    private double cellSize;
+    private int columns;
+    private int rows;
+    private int[] cellStarts = new int[0];
+    private int[] cellItems = new int[16];
+    private int[] cellFree = new int[0];
+    private int[] cells = new int[16];
+
+    private boolean stale = true;
+
+    /**
+     * Add a placeholder to the index.
+     */
+    void add(Placeholder p) {
+        if (size == placeholders.length) {
+            int capacity = 2 * size;
+            placeholders = Arrays.copyOf(placeholders, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            free = Arrays.copyOf(free, capacity);
+            cellItems = Arrays.copyOf(cellItems, capacity);
+            cells = Arrays.copyOf(cells, capacity);
+        }
+        placeholders[size] = p;
+        free[size] = !p.taken();
+        if (free[size]) {
+            freeCount++;
+        } else {
+            count(p.getStoryCard().getFunction(), 1);
+        }
+        p.setIndex(this, size);
+        size++;
+        stale = true;
+    }
+
+    /**
+     * Called when placeholders have been moved, to rebuild the grid the next
+     * time it is queried.
+     */
+    void invalidate() {
+        stale = true;
+    }
+
+    /**
+     * Return the number of free placeholders.
+     */
+    int getFreeCount() {
+        return freeCount;
+    }
+
+    /**
+     * Return the number of placeholders with a story card on them.
+     */
+    int getTakenCount() {
+        return size - freeCount;
+    }
+
+    /**
+     * Return true if any of the placeholders has a story card for function
+     * f on it.
+     */
+    boolean contains(Function f) {
+        int number = f.getNumber();
+        return number < functionCounts.length && functionCounts[number] > 0;
+    }
+
+    /**
+     * Called by the placeholder at index i when a story card for function f
+     * is put on it.
+     */
+    void taken(int i, Function f) {
+        setFree(i, false);
+        count(f, 1);
+    }
+
+    /**
+     * Called by the placeholder at index i when its story card, for function
+     * f, is taken off it.
+     */
+    void cleared(int i, Function f) {
+        setFree(i, true);
+        count(f, -1);
+    }
+
+    private void count(Function f, int delta) {
+        int number = f.getNumber();
+        if (number >= functionCounts.length) {
+            functionCounts = Arrays.copyOf(functionCounts,
+                    Math.max(number + 1, 2 * functionCounts.length));
+        }
+        functionCounts[number] += delta;
+    }
+
+    private void setFree(int i, boolean isFree) {
+        if (free[i] == isFree) {
+            return;
+        }
+        free[i] = isFree;
+        freeCount += isFree ? 1 : -1;
+        if (!stale) {
+            cellFree[cells[i]] += isFree ? 1 : -1;
+        }
+    }
+
+    /**
+     * Re-read the placeholders' positions and rebuild the grid, with cells
+     * sized so that there's about one placeholder per cell.
+     */
+    private void rebuild() {
+        stale = false;
+        int n = size;
+        if (n == 0) {
+            columns = 0;
+            rows = 0;
+            return;
+        }
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        minX = Double.POSITIVE_INFINITY;
+        minY = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            xs[i] = placeholders[i].getX();
+            ys[i] = placeholders[i].getY();
+            minX = Math.min(minX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        double width = maxX - minX;
+        double height = maxY - minY;
+        cellSize = Math.max(Math.sqrt(width * height / n),
+                Math.max(width, height) / n);
+        if (cellSize == 0) {
+            cellSize = 1;
+        }
+        columns = (int) (width / cellSize) + 1;
+        rows = (int) (height / cellSize) + 1;
+
+        // Count the placeholders in each cell, then turn the counts into
+        // start indices and fill in cellItems.
+        int numCells = columns * rows;
+        if (cellStarts.length < numCells + 1) {
+            cellStarts = new int[numCells + 1];
+            cellFree = new int[numCells];
+        } else {
+            Arrays.fill(cellStarts, 0);
+            Arrays.fill(cellFree, 0);
+        }
+        for (int i = 0; i < n; i++) {
+            int c = (int) ((ys[i] - minY) / cellSize) * columns
+                    + (int) ((xs[i] - minX) / cellSize);
+            cells[i] = c;
+            cellStarts[c + 1]++;
+            if (free[i]) {
+                cellFree[c]++;
+            }
+        }
+        for (int c = 0; c < numCells; c++) {
+            cellStarts[c + 1] += cellStarts[c];
+        }
+        // Now cellStarts[c+1] is the end of cell c. Filling each cell from
+        // the end leaves cellStarts[c+1] at the start of cell c, so shift the
+        // array down by one afterwards.
+        for (int i = n - 1; i >= 0; i--) {
+            cellItems[--cellStarts[cells[i] + 1]] = i;
+        }
+        System.arraycopy(cellStarts, 1, cellStarts, 0, numCells);
+        cellStarts[numCells] = n;
+    }
+
+    /**
+     * Return the free placeholder nearest to (x,y), in the coordinate system
+     * of the placeholders' positions, or null if there are no free
+     * placeholders.
+     */
+    Placeholder findNearestFree(double x, double y) {
+        if (stale) {
+            rebuild();
+        }
+        if (freeCount == 0) {
+            return null;
+        }
+        int cx = clamp((int) Math.floor((x - minX) / cellSize), columns);
+        int cy = clamp((int) Math.floor((y - minY) / cellSize), rows);
+        int nearest = -1;
+        double nearestDistance = Double.POSITIVE_INFINITY;
+        int maxRing = Math.max(columns, rows);
+        for (int r = 0; r <= maxRing; r++) {
+            // Visit the cells in the ring of cells r cells away from
+            // (cx,cy).
+            for (int j = cy - r; j <= cy + r; j++) {
+                if (j < 0 || j >= rows) {
+                    continue;
+                }
+                boolean edge = (j == cy - r || j == cy + r);
+                int step = edge ? 1 : 2 * r;
+                for (int i = cx - r; i <= cx + r; i += Math.max(step, 1)) {
+                    if (i < 0 || i >= columns) {
+                        continue;
+                    }
+                    int c = j * columns + i;
+                    if (cellFree[c] == 0) {
+                        continue;
+                    }
+                    for (int k = cellStarts[c]; k < cellStarts[c + 1]; k++) {
+                        int p = cellItems[k];
+                        if (!free[p]) {
+                            continue;
+                        }
+                        double dx = xs[p] - x;
+                        double dy = ys[p] - y;
+                        double distance = dx*dx + dy*dy;
+                        if (distance < nearestDistance
+                                || (distance == nearestDistance && p < nearest)) {
+                            nearestDistance = distance;
+                            nearest = p;
+                        }
+                    }
+                }
+            }
+            // Every cell more than r cells away from (cx,cy) is at least
+            // r * cellSize away from (x,y).
+            if (nearest != -1 && nearestDistance <= (r * cellSize) * (r * cellSize)) {
+                break;
+            }
+        }
+        return placeholders[nearest];
+    }
+
+    private static int clamp(int i, int size) {
+        return Math.max(0, Math.min(size - 1, i));
+    }
+}
@@ -23,12 +23,17 @@ package storymaps;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.awt.image.BufferedImage;
 import java.awt.print.PrinterException;
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.*;
-import javax.imageio.ImageIO;
+import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
 import javax.swing.text.Element;
 import javax.swing.text.View;
@@ -46,6 +51,7 @@ public class PreviewDialog {
     private final JFrame frame;
     private final JDialog dialog;
     private final JEditorPane editor;
+    private final HTMLEditorKit kit;
     private final JToolBar toolBar;
     private final Logger logger;
     private final JFileChooser fileChooser = new JFileChooser();
@@ -68,7 +74,7 @@ public class PreviewDialog {
         // loads images synchronously rather than asynchronously, which means
         // that images should print successfully instead of appearing as broken
         // links.
-        HTMLEditorKit kit = new HTMLEditorKit() {
+        kit = new HTMLEditorKit() {
             @Override
             public ViewFactory getViewFactory() {
                 return new HTMLFactory() {
@@ -132,6 +138,20 @@ public class PreviewDialog {
         dialog.getContentPane().add(toolBar,BorderLayout.SOUTH);
     }
 
+    /**
+     * A CharArrayWriter whose contents can be read back without copying them
+     * as toCharArray does.
+     */
+    private static final class HTMLBuffer extends CharArrayWriter {
+        HTMLBuffer() {
+            super(8192);
+        }
+
+        Reader getReader() {
+            return new CharArrayReader(buf, 0, count);
+        }
+    }
+
     // Configures a JButton and adds it to the toolbar.
     private void configureButton(JButton button, String iconPath) {
         try {
@@ -149,10 +169,17 @@ public class PreviewDialog {
     // Update the storymap field and the editor.
     private void update(StoryMap map) {
         this.map = map;
-        // Convert the story map to HTML and load it into the editor pane.
+        // Convert the story map to HTML and load it into the editor pane. The
+        // HTML is parsed straight out of the buffer it's rendered into,
+        // without copying it.
         try {
-            String html = new TemplateHandler().renderStoryMap(map,getClass().getResource("/data/functions/").toString());
-            editor.setText(html);
+            HTMLBuffer html = new HTMLBuffer();
+            TemplateHandler.getShared().renderStory(StoryView.of(map),getClass().getResource("/data/functions/").toString(),html);
+            Document doc = editor.getDocument();
+            doc.remove(0, doc.getLength());
+            kit.read(html.getReader(), doc, 0);
+        } catch (BadLocationException e) {
+            logger.log(Level.SEVERE, "BadLocationException when loading HTML into the preview", e);
         } catch (IOException e) {
             logger.log(Level.SEVERE, "IOException when converting StoryMap to HTML", e);
         } catch (TemplateHandlerException e) {
@@ -190,6 +217,42 @@ public class PreviewDialog {
         saveAsHTML();
     }
 
+    /**
+     * Write the images of the story cards with the given functions into dir
+     * in the background, showing the progress in a ProgressMonitor.
+     */
+    private void exportCardImages(final List<Function> functions, final File dir) {
+        final ProgressMonitor monitor = new ProgressMonitor(dialog,
+                "Saving story card images", null, 0, functions.size());
+        monitor.setMillisToDecideToPopup(200);
+        final CardImageExporter.Progress progress = new CardImageExporter.Progress() {
+            public void exported(final int done, int total) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        monitor.setProgress(done);
+                    }
+                });
+            }
+        };
+        Thread exporter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    CardImageExporter.getShared().export(functions, dir, 1,
+                            progress);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "IOException when exporting story card images to files.", e);
+                } finally {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            monitor.close();
+                        }
+                    });
+                }
+            }
+        }, "HTML export");
+        exporter.start();
+    }
+
     // FIXME: if this method is called when show() hasn't been called you'll
     // get a NullPointerException. Really a PreviewDialog should belong to a
     // StoryMap, making such a situation impossible.
@@ -206,22 +269,19 @@ public class PreviewDialog {
                 String filesDir = fileName+"_files";
                 File filesPath = new File(parentDir,filesDir);
                 filesPath.mkdirs();
+                Writer out = Util.openTextFile(path);
                 try {
-                    String html = new TemplateHandler().renderStoryMap(map, filesDir);
-                    Util.writeTextToFile(html,path);
+                    TemplateHandler.getShared().renderStory(StoryView.of(map), filesDir, out);
                 } catch (TemplateHandlerException ex) {
                    logger.log(Level.SEVERE, "TemplateHandlerException when converting StoryMap to HTML.", ex);
+                } finally {
+                    out.close();
                 }
-                for (int i=0; i < map.getStoryCards().size(); i++) {
-                    StoryCard s = map.getStoryCards().get(i);
-                    try {
-                        BufferedImage bi = Util.toBufferedImage(s.getNode().toImage());
-                        File outputfile = new File(filesPath,s.getFunction().getImageFilename());
-                        ImageIO.write(bi, "png", outputfile);
-                    } catch (IOException e) {
-                        logger.warning("IOException when exporting story card image to file." + e.toString());
-                    }
+                List<Function> functions = new ArrayList<Function>();
+                for (StoryCard s : map.getStoryCards()) {
+                    functions.add(s.getFunction());
                 }
+                exportCardImages(functions, filesPath);
             } catch (IOException e) {
                 logger.log(Level.SEVERE, "IOException when writing HTML representation of StoryMap to file.", e);
             }
@@ -28,15 +28,15 @@ package storymaps;
  */
 interface Receiver {    
     /**
-     * This method is called by the messager when a message is sent with a name
+     * This method is called by the messager when a message is sent to a topic
      * that this receiver is subscribed to. Subclasses should override this
-     * method to receive messages.
+     * method to receive messages, and can compare topics with ==.
      * 
-     * @param name The name of the message that was sent.
+     * @param topic The topic of the message that was sent.
      * @param receiver_arg The argument that was passed to accept or acceptOnce
      *                     when subscribing to the message name.
      * @param sender_arg The argument that was passed to send by the object that
      *                   sent the message.
      */
-    public void receive(String name, Object receiver_arg, Object sender_arg);
+    public void receive(Topic topic, Object receiver_arg, Object sender_arg);
 }
@@ -0,0 +1,223 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of pre-scaled copies of images, so that painting a zoomed image
+ * draws a bitmap of (nearly) the right size instead of resampling the full
+ * resolution image on every frame.
+ *
+ * Each image gets a pyramid of copies at scales a half-octave apart (1, 0.71,
+ * 0.5, 0.35 ... down to MIN_LEVEL), created on demand. Each level is made by
+ * halving the level an octave above it, never by scaling the full resolution
+ * image down by more than half in one go, since Java2D's bicubic filter
+ * skips source pixels (and so aliases) below that. The copies are made
+ * compatible with the graphics device being painted to so that Java2D can
+ * keep them in video memory.
+ *
+ * The cache holds at most a fixed number of bytes of scaled images, set by
+ * the storymaps.scaledImageCacheBytes system property (default 32MB), and
+ * evicts the least recently painted copies when it's full.
+ *
+ * @author seanh
+ */
+final class ScaledImageCache {
+
+    /**
+     * The smallest level, in half-octaves below full size (-6 = 1/8 scale).
+     */
+    private static final int MIN_LEVEL = -6;
+
+    private static final long DEFAULT_CAPACITY = 32L * 1024 * 1024;
+
+    private static final ScaledImageCache shared = new ScaledImageCache(
+            Long.getLong("storymaps.scaledImageCacheBytes", DEFAULT_CAPACITY));
+
+    /**
+     * Identifies one level of one image's pyramid. Images are compared by
+     * identity.
+     */
+    private static final class Key {
+        private final Image image;
+        private final int level;
+
+        Key(Image image, int level) {
+            this.image = image;
+            this.level = level;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) obj;
+            return k.image == image && k.level == level;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(image) * 31 + level;
+        }
+    }
+
+    private final long capacity;
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * The scaled images in least recently used order.
+     */
+    private final LinkedHashMap<Key,BufferedImage> images =
+            new LinkedHashMap<Key,BufferedImage>(64, 0.75f, true);
+
+    ScaledImageCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Get the cache shared by all SemanticImageNodes.
+     */
+    static ScaledImageCache getShared() {
+        return shared;
+    }
+
+    /**
+     * Return a copy of image scaled to the pyramid level nearest the given
+     * scale, or the image itself if the scale is 1 or more or the image
+     * hasn't finished loading.
+     *
+     * @param scale The ratio of on-screen pixels to image pixels.
+     * @param gc The graphics configuration to make the copy compatible with,
+     * or null.
+     */
+    synchronized Image get(Image image, double scale, GraphicsConfiguration gc) {
+        int level = (int) Math.round(2 * Math.log(scale) / Math.log(2));
+        if (level >= 0) {
+            return image;
+        }
+        if (level < MIN_LEVEL) {
+            level = MIN_LEVEL;
+        }
+        int w = image.getWidth(null);
+        int h = image.getHeight(null);
+        if (w <= 0 || h <= 0) {
+            return image;
+        }
+        return level(image, level, w, h, gc);
+    }
+
+    /**
+     * Return the given level of the pyramid of image, which is w by h
+     * pixels, making it from the level an octave above (made and cached the
+     * same way, if necessary) if it isn't cached.
+     */
+    private Image level(Image image, int level, int w, int h,
+            GraphicsConfiguration gc) {
+        if (level >= 0) {
+            return image;
+        }
+        Key key = new Key(image, level);
+        BufferedImage scaled = images.get(key);
+        if (scaled != null) {
+            hits++;
+            return scaled;
+        }
+        misses++;
+        Image source = level(image, Math.min(0, level + 2), w, h, gc);
+        // Sizes are worked out from the full resolution image so that
+        // rounding doesn't accumulate down the pyramid.
+        double factor = Math.pow(2, level / 2.0);
+        int sw = Math.max(1, (int) Math.round(w * factor));
+        int sh = Math.max(1, (int) Math.round(h * factor));
+        scaled = scale(source, sw, sh, gc);
+        long bytes = 4L * sw * sh;
+        if (bytes > capacity) {
+            return scaled;
+        }
+        images.put(key, scaled);
+        size += bytes;
+        Iterator<Map.Entry<Key,BufferedImage>> i = images.entrySet().iterator();
+        while (size > capacity && i.hasNext()) {
+            BufferedImage evicted = i.next().getValue();
+            size -= 4L * evicted.getWidth() * evicted.getHeight();
+            i.remove();
+            evicted.flush();
+        }
+        return scaled;
+    }
+
+    /**
+     * Remove every scaled copy of the given image, e.g. because the image
+     * itself is being discarded.
+     */
+    synchronized void remove(Image image) {
+        Iterator<Map.Entry<Key,BufferedImage>> i = images.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<Key,BufferedImage> entry = i.next();
+            if (entry.getKey().image == image) {
+                BufferedImage evicted = entry.getValue();
+                size -= 4L * evicted.getWidth() * evicted.getHeight();
+                i.remove();
+                evicted.flush();
+            }
+        }
+    }
+
+    private static BufferedImage scale(Image image, int width, int height,
+            GraphicsConfiguration gc) {
+        BufferedImage scaled;
+        if (gc != null) {
+            scaled = gc.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+        } else {
+            scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        }
+        Graphics2D g = scaled.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING,
+                RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+    }
+
+    synchronized long getSize() { return size; }
+
+    @Override
+    public synchronized String toString() {
+        return "ScaledImageCache: " + images.size() + " images, " + size
+                + "/" + capacity + " bytes, " + hits + " hits, " + misses
+                + " misses";
+    }
+}
@@ -27,19 +27,32 @@ import java.awt.Image;
 import edu.umd.cs.piccolo.util.PBounds;
 
 /**
+ * An image node that paints a function's low-detail image when zoomed out
+ * and its high-detail image when zoomed in past a given scale.
+ *
+ * The high-detail image is not decoded until the node is first painted
+ * zoomed in. It is then decoded in the background and held by the
+ * DetailImageCache, and the low-detail image is painted until it arrives.
+ * When the node is painted zoomed out again it releases the high-detail
+ * image, which the cache then only holds softly.
  *
  * @author seanh
  */
 public class SemanticImageNode extends PImage {
 
+    private Function function;
     private Image farImage;
-    private Image nearImage;
     private double scale;
 
-    SemanticImageNode(Image farImage, Image nearImage, double scale) {
-        super(farImage);
-        this.farImage = farImage;
-        this.nearImage = nearImage;
+    /**
+     * Whether this node last painted the high-detail image.
+     */
+    private boolean near = false;
+
+    SemanticImageNode(Function function, double scale) {
+        super(function.getImage());
+        this.function = function;
+        this.farImage = function.getImage();
         this.scale = scale;
     }
 
@@ -47,7 +60,22 @@ public class SemanticImageNode extends PImage {
         return farImage;
     }
 
+    /**
+     * Return the high-detail image if it is decoded, otherwise start decoding
+     * it (this node is repainted when it's ready) and return the low-detail
+     * image.
+     */
     Image getNearImage() {
+        DetailImageCache cache = DetailImageCache.getShared();
+        Image nearImage = cache.peek(function);
+        if (nearImage == null) {
+            cache.request(function, new Runnable() {
+                public void run() {
+                    repaint();
+                }
+            });
+            return farImage;
+        }
         return nearImage;
     }
 
@@ -55,25 +83,41 @@ public class SemanticImageNode extends PImage {
     public void paint(PPaintContext paintContext) {
         double s = paintContext.getScale();
         if (s < this.scale) {
+            if (near) {
+                near = false;
+                DetailImageCache.getShared().release(function);
+            }
             paintNode(paintContext, farImage);
         } else {
-            paintNode(paintContext, nearImage);
+            Image image = getNearImage();
+            near = image != farImage;
+            paintNode(paintContext, image);
         }
     }
 
+    /**
+     * Paint the image to fill this node's bounds. Rather than resampling the
+     * full resolution image on every paint, a pre-scaled copy of about the
+     * right size is fetched from the ScaledImageCache and only the small
+     * remaining difference in scale is left to Java2D.
+     */
     private void paintNode(PPaintContext paintContext, Image image) {
         double iw = image.getWidth(null);
-        double ih = image.getHeight(null);
         PBounds b = getBoundsReference();
         Graphics2D g2 = paintContext.getGraphics();
-        if (b.x != 0 || b.y != 0 || b.width != iw || b.height != ih) {
+        Image scaled = ScaledImageCache.getShared().get(image,
+                paintContext.getScale() * b.width / iw,
+                g2.getDeviceConfiguration());
+        double sw = scaled.getWidth(null);
+        double sh = scaled.getHeight(null);
+        if (b.x != 0 || b.y != 0 || b.width != sw || b.height != sh) {
             g2.translate(b.x, b.y);
-            g2.scale(b.width / iw, b.height / ih);
-            g2.drawImage(image, 0, 0, null);
-            g2.scale(iw / b.width, ih / b.height);
+            g2.scale(b.width / sw, b.height / sh);
+            g2.drawImage(scaled, 0, 0, null);
+            g2.scale(sw / b.width, sh / b.height);
             g2.translate(-b.x, -b.y);
         } else {
-            g2.drawImage(image, 0, 0, null);
+            g2.drawImage(scaled, 0, 0, null);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,54 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import java.util.logging.Logger;
+
+/**
+ * Logs how long each phase of starting the application takes.
+ *
+ * The timeline starts when it is constructed. Each call to phase logs the
+ * time since the previous phase ended and since the start, so the log shows
+ * where startup time goes (catalog parse, image decode, scene build, first
+ * paint...).
+ *
+ * @author seanh
+ */
+final class StartupTimeline {
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final long start;
+    private long previous;
+
+    StartupTimeline() {
+        start = System.nanoTime();
+        previous = start;
+    }
+
+    /**
+     * Record that the named phase has just ended.
+     */
+    synchronized void phase(String name) {
+        long now = System.nanoTime();
+        logger.info("Startup: " + name + " took " + (now - previous) / 1000000
+                + "ms, " + (now - start) / 1000000 + "ms since start.");
+        previous = now;
+    }
+}
@@ -93,6 +93,13 @@ public class StoryBase implements DroppableOwner {
                 this.color.getBlue());
     }
 
+    /**
+     * Return the node that is drawn over the grid.
+     */
+    protected PNode getOverlay() {
+        return overlay;
+    }
+
     /**
      * Add a node to the grid.
      */
@@ -23,7 +23,6 @@ import DragAndDrop.DragDropObserver;
 import DragAndDrop.Draggable;
 import DragAndDrop.DropEvent;
 import DragAndDrop.NodeAlreadyDraggableException;
-import edu.umd.cs.piccolo.PNode;
 import edu.umd.cs.piccolo.activities.PInterpolatingActivity;
 import edu.umd.cs.piccolo.event.PBasicInputEventHandler;
 import edu.umd.cs.piccolo.event.PInputEvent;
@@ -73,12 +72,12 @@ class StoryCard extends StoryCardBase implements Receiver,
                     // If the StoryCard is double-clicked with the left mouse
                     // button send the "StoryCard double-clicked" message.
                     Messager m = Messager.getMessager();
-                    m.send("StoryCard double-clicked", StoryCard.this);
+                    m.send(Topic.STORYCARD_DOUBLE_CLICKED, StoryCard.this);
                     event.setHandled(true);
                 } else if (event.getButton() == 1 && event.getClickCount() == 1) {
                     // If the StoryCard is single-clicked with the left mouse
                     // button send the "StoryCard single-clicked" message.
-                    Messager.getMessager().send("StoryCard single-clicked", StoryCard.this);
+                    Messager.getMessager().send(Topic.STORYCARD_SINGLE_CLICKED, StoryCard.this);
                     event.setHandled(true);
                 }*/
             }
@@ -93,7 +92,8 @@ class StoryCard extends StoryCardBase implements Receiver,
             // ...
         }       
         
-        Messager.getMessager().accept("drag started", this, null);
+        // Only hear about drags of this card's own node.
+        Messager.getMessager().acceptFor(Topic.DRAG_STARTED, getNode(), this, null);
     }
         
     public void attach(DragDropObserver o) {
@@ -193,17 +193,12 @@ class StoryCard extends StoryCardBase implements Receiver,
         }
     }
     
-    public void receive(String name, Object receiver_arg, Object sender_arg) {
-        if (name.equals("drag started")) {
-            if (sender_arg instanceof PNode) {
-                PNode node = (PNode) sender_arg;
-                if (node.equals(getNode())) {
-                    if (activity != null) {
-                        activity.terminate();
-                    }
-                    getNode().setScale(1.0);
-                }
+    public void receive(Topic topic, Object receiver_arg, Object sender_arg) {
+        if (topic == Topic.DRAG_STARTED) {
+            if (activity != null) {
+                activity.terminate();
             }
+            getNode().setScale(1.0);
         }
     }
     
@@ -220,6 +215,8 @@ class StoryCard extends StoryCardBase implements Receiver,
     // --------------------
     
     private static final class StoryCardMemento implements Memento {
+        private static final long serialVersionUID = -3118247596278808498L;
+
         // No need to defensively copy anything as strings are immutable and
         // FunctionMemento should be immutable.
         private final Memento functionMemento;
@@ -253,4 +250,21 @@ class StoryCard extends StoryCardBase implements Receiver,
         Function f = Function.newInstanceFromMemento(scm.getFunctionMemento());
         return new StoryCard(f,scm.getUserText());
     }
-}
\ No newline at end of file
+
+    /**
+     * Return the function number and text recorded in a StoryCard memento,
+     * without constructing a StoryCard.
+     */
+    static StoryState.Slot slotFromMemento(Memento m) throws MementoException {
+        if (!(m instanceof StoryCardMemento)) {
+            String detail = "Wrong type of memento object.";
+            MementoException e = new MementoException(detail);
+            Logger.getLogger(StoryCard.class.getName()).throwing("StoryCard", "slotFromMemento", e);
+            throw e;
+        }
+        StoryCardMemento scm = (StoryCardMemento) m;
+        return new StoryState.Slot(
+                Function.numberFromMemento(scm.getFunctionMemento()),
+                scm.getUserText());
+    }
+}
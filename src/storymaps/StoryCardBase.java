@@ -23,6 +23,7 @@ package storymaps;
 import edu.umd.cs.piccolo.PNode;
 import edu.umd.cs.piccolo.nodes.PImage;
 import edu.umd.cs.piccolo.nodes.PPath;
+import edu.umd.cs.piccolo.util.PBounds;
 import java.awt.Color;
 import java.awt.Image;
 import java.io.IOException;
@@ -46,9 +47,7 @@ abstract class StoryCardBase {
     StoryCardBase(Function function) {
         this.function = function;
         node = new PNode();
-        Image farImage = function.getImage();
-        Image nearImage = function.getHighDetailImage();
-        image = new SemanticImageNode(farImage, nearImage, SCALE+0.1);
+        image = new SemanticImageNode(function, SCALE+0.1);
         image.setOffset(-0.5*image.getWidth(),-0.5*image.getHeight());
         image.setScale(SCALE);
         image.setPickable(false);
@@ -57,6 +56,18 @@ abstract class StoryCardBase {
         node.addAttribute("StoryCard", this);
     }
 
+    /**
+     * Return the bounds that a story card for the given function would have,
+     * in its own coordinate system, without constructing one.
+     */
+    static PBounds getBounds(Function function) {
+        Image image = function.getImage();
+        double width = image.getWidth(null);
+        double height = image.getHeight(null);
+        return new PBounds(-0.5*width, -0.5*height, SCALE*width,
+                SCALE*height);
+    }
+
     protected PNode getNode() {return node;}
 
     Image getImage() { return image.getFarImage(); }
@@ -37,15 +37,15 @@ public class StoryCardDemo extends PFrame implements Receiver {
         StoryCard card = new StoryCard(f, "A villainous act by a villain, committed in a villainous way and, generally, in the spirit of villainy.");
         getCanvas().getLayer().addChild(card.getNode());
         Messager m = Messager.getMessager();
-        m.accept("StoryCard clicked", this, null);
+        m.accept(Topic.STORYCARD_CLICKED, this, null);
     }
     
     public static void main(String args[]) {
         StoryCardDemo demo = new StoryCardDemo();
     }
     
-     public void receive(String name, Object receiver_arg, Object sender_arg) {
-         if (name.equals("StoryCard clicked")) {
+     public void receive(Topic topic, Object receiver_arg, Object sender_arg) {
+         if (topic == Topic.STORYCARD_CLICKED) {
             PCamera cam = getCanvas().getCamera();
             StoryCard card = (StoryCard) sender_arg;
             PNode node = card.getNode();
@@ -22,6 +22,7 @@ package storymaps;
 
 import DragAndDrop.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.awt.Color;
 import java.util.logging.Logger;
@@ -60,6 +61,13 @@ class StoryCards extends StoryBase implements DragDropObserver, Originator {
     private ArrayList<DisabledStoryCard> disabled_storycards =
             new ArrayList<DisabledStoryCard>();
 
+    /**
+     * The disabled story cards indexed by function number, and the number of
+     * them with a story card on top.
+     */
+    private DisabledStoryCard[] byFunction = new DisabledStoryCard[0];
+    private int taken = 0;
+
     private static final double left_margin = 25;
     private static final double top_margin = 23;
     private static final double spacing = 9;
@@ -76,9 +84,7 @@ class StoryCards extends StoryBase implements DragDropObserver, Originator {
         // Keep references to all these DisabledStoryCards in
         // disabled_storycards.
         for (Function f : Function.getFunctions()) {
-            DisabledStoryCard d = new DisabledStoryCard(f);
-            addToGrid(d.getNode());
-            disabled_storycards.add(d);
+            addDisabledStoryCard(new DisabledStoryCard(f));
         }
         
         // Add a duplicate StoryCard on top of each DisabledStoryCard.
@@ -99,8 +105,7 @@ class StoryCards extends StoryBase implements DragDropObserver, Originator {
         super(width, height, xoffset, yoffset, color, left_margin, top_margin, spacing);
 
         for (DisabledStoryCard dsc : disabled_storycards) {
-            addToGrid(dsc.getNode());
-            this.disabled_storycards.add(dsc);
+            addDisabledStoryCard(dsc);
         }
 
         for (DisabledStoryCard dsc : disabled_storycards) {
@@ -111,38 +116,43 @@ class StoryCards extends StoryBase implements DragDropObserver, Originator {
         }
     }
 
+    /**
+     * Add d to the grid node, to disabled_storycards and to byFunction.
+     */
+    private void addDisabledStoryCard(DisabledStoryCard d) {
+        addToGrid(d.getNode());
+        disabled_storycards.add(d);
+        int number = d.getFunction().getNumber();
+        if (number >= byFunction.length) {
+            byFunction = Arrays.copyOf(byFunction, number + 1);
+        }
+        byFunction[number] = d;
+    }
+
     /**
      * Return a DisabledStoryCard from disabled_storycards that has the same
      * function as s, or null if no such story card exists in
      * disabled_storycards.
      */
     private DisabledStoryCard findDisabledStoryCard(StoryCard s) {
-        for (DisabledStoryCard d : disabled_storycards) {
-            if (d.getFunction().compare(s.getFunction())) {
-                return d;
-            }
-        }
-        return null;
+        int number = s.getFunction().getNumber();
+        return number < byFunction.length ? byFunction[number] : null;
     }
 
     /**
-     * Return a StoryCard from this story map that has the same function as s,
-     * or null if no such story card exists in this story map.
+     * Return true if this story map has a story card with the same function
+     * as s.
      */
-    private StoryCard findStoryCard(StoryCard s) {
-        for (StoryCard c : getStoryCards()) {
-            if (c.getFunction().compare(s.getFunction())) {
-                return c;
-            }
-        }
-        return null;
-    }    
+    private boolean containsFunction(StoryCard s) {
+        DisabledStoryCard d = findDisabledStoryCard(s);
+        return d != null && d.taken();
+    }
     
     /**
-     * Return a list of all the StoryCards in this story map.
+     * Return a new list of all the StoryCards in this story map.
      */
     public ArrayList<StoryCard> getStoryCards() {
-        ArrayList<StoryCard> list = new ArrayList<StoryCard>();
+        ArrayList<StoryCard> list = new ArrayList<StoryCard>(taken);
         for (DisabledStoryCard d: disabled_storycards) {
             if (d.taken()) {
                 list.add(d.getStoryCard());
@@ -151,6 +161,13 @@ class StoryCards extends StoryBase implements DragDropObserver, Originator {
         return list;
     }
 
+    /**
+     * Return the number of StoryCards in this story map.
+     */
+    int getStoryCardCount() {
+        return taken;
+    }
+
     public ArrayList<DisabledStoryCard> getDisabledStoryCards() {
         return disabled_storycards;
     }
@@ -163,7 +180,8 @@ class StoryCards extends StoryBase implements DragDropObserver, Originator {
         addToOverlay(s.getNode());
         DisabledStoryCard d = findDisabledStoryCard(s);        
         s.getNode().setOffset(d.getNode().getOffset());
-        d.setStoryCard(s);        
+        d.setStoryCard(s);
+        taken++;
     }
     
     /**
@@ -187,7 +205,7 @@ class StoryCards extends StoryBase implements DragDropObserver, Originator {
             return false;
         }
         
-        if (findStoryCard(s) != null) { 
+        if (containsFunction(s)) {
             // We already have a story card like this one, reject it.
             return false;
         }
@@ -219,6 +237,7 @@ class StoryCards extends StoryBase implements DragDropObserver, Originator {
         StoryCard s = (StoryCard) draggee.getNode().getAttribute("StoryCard");
         DisabledStoryCard d = (DisabledStoryCard) s.getNode().getAttribute("DisabledStoryCard");
         d.clearStoryCard();
+        taken--;
         return false;
     }
 
@@ -226,6 +245,7 @@ class StoryCards extends StoryBase implements DragDropObserver, Originator {
     // --------------------
     
     private static final class StoryCardsMemento implements Memento {
+        private static final long serialVersionUID = -8468508598554748544L;
 
         // DisabledStoryCardMementos are immutable but lists aren't, so this
         //field needs to be defensively copied to keep this class immutable.
@@ -302,4 +322,23 @@ class StoryCards extends StoryBase implements DragDropObserver, Originator {
                 memento.getColor(), disabledStoryCards);
         return storyCards;
     }
-}
\ No newline at end of file
+
+    /**
+     * Return the slots recorded in a StoryCards memento, without constructing
+     * any StoryCards or DisabledStoryCards.
+     */
+    static List<StoryState.Slot> slotsFromMemento(Memento m)
+            throws MementoException {
+        if (!(m instanceof StoryCardsMemento)) {
+            String detail = "Wrong type of memento object.";
+            MementoException e = new MementoException(detail);
+            Logger.getLogger(StoryCards.class.getName()).throwing("StoryCards", "slotsFromMemento", e);
+            throw e;
+        }
+        List<StoryState.Slot> slots = new ArrayList<StoryState.Slot>();
+        for (Memento dscm : ((StoryCardsMemento) m).getDisabledStoryCardMementos()) {
+            slots.add(DisabledStoryCard.slotFromMemento(dscm));
+        }
+        return slots;
+    }
+}
@@ -26,6 +26,7 @@ import javax.swing.*;
 import javax.swing.text.DefaultEditorKit;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import storymaps.ui.Fonts;
 import java.util.logging.Logger;
 
@@ -93,7 +94,7 @@ class StoryEditor implements Receiver {
         makeBottomToolBar();
         collapsiblePanel.add(bottomToolBar,BorderLayout.SOUTH);
         
-        Messager.getMessager().accept("button clicked",this,null);
+        Messager.getMessager().accept(Topic.BUTTON_CLICKED,this,null);
     }
     
     private JToolBar makeTopToolBar() {
@@ -130,7 +131,7 @@ class StoryEditor implements Receiver {
         sortButton.setToolTipText("Sort your story cards into the right order.");
         sortButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                Messager.getMessager().send("sort", null);
+                Messager.getMessager().send(Topic.SORT, null);
             }
         });
         configureButton("Sort", "/data/icons/sort.png", sortButton);
@@ -290,7 +291,7 @@ class StoryEditor implements Receiver {
             collapsiblePanel.getParent().repaint();
             writeButton.setText(planText);
             writeButton.setIcon(planIcon);
-            Messager.getMessager().send("Editor uncollapsed", this);
+            Messager.getMessager().send(Topic.EDITOR_UNCOLLAPSED, this);
         } else {
             collapsed = true;
             collapsiblePanel.setPreferredSize(new Dimension(frame.getWidth(),0));
@@ -299,21 +300,118 @@ class StoryEditor implements Receiver {
             collapsiblePanel.getParent().repaint();
             writeButton.setText(writeText);
             writeButton.setIcon(writeIcon);
-            Messager.getMessager().send("Editor collapsed", this);
+            Messager.getMessager().send(Topic.EDITOR_COLLAPSED, this);
         }
     }
     
     /**
      * Update the list of FunctionEditors in this StoryEditor.
+     * 
+     * Rather than removing and re-adding every FunctionEditor, which makes
+     * Swing lay them all out again, only the editors that have been added,
+     * removed or moved are changed. The editors that keep their order (the
+     * longest run of them that's in order in both the old and new lists)
+     * are left in place and the rest are inserted around them. The editor
+     * that was showing is still showing afterwards, if it's still there.
      */
     public void update(ArrayList<StoryCard> new_cards) {
-        editorsPanel.removeAll();
-        for (StoryCard s : new_cards) {
-            FunctionEditor e = s.getEditor();
-            // FIXME: this might cause a problem if we can have two story cards
-            // with the same name.
-            editorsPanel.add(e.getComponent(),e.getFunction().getName());
+        Component[] old = editorsPanel.getComponents();
+        int n = new_cards.size();
+        Component[] target = new Component[n];
+        IdentityHashMap<Component,Integer> targetIndex =
+                new IdentityHashMap<Component,Integer>();
+        for (int i = 0; i < n; i++) {
+            target[i] = new_cards.get(i).getEditor().getComponent();
+            targetIndex.put(target[i], i);
         }
+
+        Component showing = null;
+        for (Component c : old) {
+            if (c.isVisible()) {
+                showing = c;
+                break;
+            }
+        }
+
+        // The new positions of the old editors that are still in the story,
+        // in their old order.
+        int[] positions = new int[old.length];
+        int kept = 0;
+        for (Component c : old) {
+            Integer i = targetIndex.get(c);
+            if (i != null) {
+                positions[kept++] = i;
+            }
+        }
+        boolean[] stays = longestIncreasing(positions, kept, n);
+
+        boolean changed = false;
+        for (Component c : old) {
+            Integer i = targetIndex.get(c);
+            if (i == null || !stays[i]) {
+                editorsPanel.remove(c);
+                changed = true;
+            }
+        }
+        // Now the panel holds the editors that stay, in order, and each of
+        // the others goes in at its own index.
+        for (int i = 0; i < n; i++) {
+            if (!stays[i]) {
+                FunctionEditor e = new_cards.get(i).getEditor();
+                // FIXME: this might cause a problem if we can have two story cards
+                // with the same name.
+                editorsPanel.add(target[i], e.getFunction().getName(), i);
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            if (showing != null && targetIndex.containsKey(showing)
+                    && !showing.isVisible()) {
+                editorsLayout.show(editorsPanel,
+                        new_cards.get(targetIndex.get(showing)).getFunction().getName());
+            }
+            editorsPanel.revalidate();
+            editorsPanel.repaint();
+        }
+    }
+
+    /**
+     * Given the first count values in positions, which are distinct and less
+     * than n, return which of the numbers below n make up a longest
+     * increasing subsequence of them.
+     */
+    private static boolean[] longestIncreasing(int[] positions, int count, int n) {
+        // tails[k] is the index of the smallest value that ends an
+        // increasing subsequence of length k+1 found so far, so the values
+        // at tails are increasing and each new value is placed by binary
+        // search. previous[i] is the index before i in the subsequence
+        // ending at i.
+        int[] tails = new int[count];
+        int[] previous = new int[count];
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (positions[tails[mid]] < positions[i]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+        boolean[] in = new boolean[n];
+        for (int i = length > 0 ? tails[length - 1] : -1; i != -1; i = previous[i]) {
+            in[positions[i]] = true;
+        }
+        return in;
     }
         
     /**
@@ -336,8 +434,8 @@ class StoryEditor implements Receiver {
         this.title.setText(title);
     }
 
-    public void receive(String name, Object receiver_arg, Object sender_arg) {
-        if (name.equals("button clicked")) {
+    public void receive(Topic topic, Object receiver_arg, Object sender_arg) {
+        if (topic == Topic.BUTTON_CLICKED) {
             if ( ((String)sender_arg).equals("Write Story") ) {
                 collapse();
             }
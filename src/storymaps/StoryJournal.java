@@ -0,0 +1,435 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * An append-only autosave journal.
+ *
+ * The journal file begins with a checkpoint, a complete description of the
+ * story, followed by a tail of deltas. Each call to append writes only the
+ * slots, title and durations that changed since the previous call, so an
+ * autosave where nothing changed writes nothing at all and an autosave where
+ * one card was moved writes a few dozen bytes.
+ *
+ * Every batch of records ends with a commit marker. When the journal is
+ * replayed a batch's records are only applied once its commit marker has
+ * been read, so a batch that was only partly written (e.g. because the
+ * application was killed mid-write) is ignored and the story is restored to
+ * the last complete autosave. If an append fails part way through, the
+ * partial batch is truncated off the end of the file so that the next batch
+ * doesn't follow it.
+ *
+ * Every write is synced to disk before append returns.
+ *
+ * Once the tail grows larger than the checkpoint, or after COMPACT_AFTER
+ * batches, the journal is compacted: a new checkpoint of the current state is
+ * written to a temporary file which then replaces the journal.
+ *
+ * @author seanh
+ */
+final class StoryJournal {
+
+    /**
+     * "SMJ1", the first four bytes of every journal file.
+     */
+    private static final int MAGIC = 0x534d4a31;
+
+    // Record types.
+    private static final byte OP_TITLE = 1;
+    private static final byte OP_DECK_SIZE = 2;
+    private static final byte OP_DECK_SLOT = 3;
+    private static final byte OP_MAP_SIZE = 4;
+    private static final byte OP_MAP_SLOT = 5;
+    private static final byte OP_DURATIONS = 6;
+    private static final byte OP_COMMIT = 127;
+
+    /**
+     * The number of delta batches after which the journal is compacted
+     * regardless of its size.
+     */
+    private static final int COMPACT_AFTER = 60;
+
+    /**
+     * The journal file.
+     */
+    private final File file;
+
+    /**
+     * The state most recently written to the journal, or null if nothing has
+     * been written yet.
+     */
+    private StoryState last = null;
+
+    /**
+     * The size in bytes of the checkpoint at the start of the journal file.
+     */
+    private long checkpointSize = 0;
+
+    /**
+     * The size in bytes of the deltas appended since the checkpoint.
+     */
+    private long tailSize = 0;
+
+    /**
+     * The number of delta batches appended since the checkpoint.
+     */
+    private int batches = 0;
+
+    StoryJournal(File file) {
+        this.file = file;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Record a new state of the story in the journal. The first call writes a
+     * checkpoint, later calls append only what has changed.
+     *
+     * @return true if anything was written, false if the state was unchanged.
+     */
+    synchronized boolean append(StoryState state) throws IOException {
+        if (last == null) {
+            checkpoint(state);
+            return true;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int records = writeDelta(last, state, out);
+        if (records == 0) {
+            return false;
+        }
+        out.writeByte(OP_COMMIT);
+        out.flush();
+        if (batches + 1 >= COMPACT_AFTER
+                || tailSize + bytes.size() > checkpointSize) {
+            checkpoint(state);
+            return true;
+        }
+        long length = file.length();
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(file, true);
+            bytes.writeTo(fos);
+            fos.getFD().sync();
+        } catch (IOException e) {
+            if (fos != null) {
+                truncate(fos, length);
+            }
+            String detail = "IOException when appending to journal at path: " + file;
+            IOException ee = new IOException(detail, e);
+            Logger.getLogger(StoryJournal.class.getName()).throwing("StoryJournal", "append", ee);
+            throw ee;
+        } finally {
+            if (fos != null) {
+                fos.close();
+            }
+        }
+        last = state;
+        tailSize += bytes.size();
+        batches++;
+        return true;
+    }
+
+    /**
+     * Cut off whatever part of a failed batch was written after the first
+     * length bytes of the journal. If that fails too, forget the last state
+     * so that the next append writes a whole new checkpoint instead of
+     * appending after the partial batch.
+     */
+    private void truncate(FileOutputStream fos, long length) {
+        try {
+            fos.getChannel().truncate(length);
+        } catch (IOException e) {
+            Logger.getLogger(StoryJournal.class.getName()).warning(
+                    "Could not truncate partial batch from journal at path: "
+                    + file + ". " + e);
+            last = null;
+        }
+    }
+
+    /**
+     * Replace the journal with a single checkpoint of the given state.
+     */
+    private void checkpoint(StoryState state) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            writeDelta(null, state, out);
+            out.writeByte(OP_COMMIT);
+            out.flush();
+            // Make sure the checkpoint is on disk before it replaces the old
+            // journal.
+            fos.getFD().sync();
+            out.close();
+            out = null;
+            // File.renameTo won't replace an existing file on every platform.
+            if (!tmp.renameTo(file)) {
+                if (!file.delete() || !tmp.renameTo(file)) {
+                    throw new IOException("Could not rename " + tmp + " to " + file);
+                }
+            }
+        } catch (IOException e) {
+            String detail = "IOException when writing journal checkpoint to path: " + file;
+            IOException ee = new IOException(detail, e);
+            Logger.getLogger(StoryJournal.class.getName()).throwing("StoryJournal", "checkpoint", ee);
+            throw ee;
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+        last = state;
+        checkpointSize = file.length();
+        tailSize = 0;
+        batches = 0;
+    }
+
+    /**
+     * Write the records that turn state `from` into state `to`. If `from` is
+     * null every record needed to describe `to` is written.
+     *
+     * @return The number of records written.
+     */
+    private static int writeDelta(StoryState from, StoryState to,
+            DataOutputStream out) throws IOException {
+        int records = 0;
+        if (from == null || !equal(from.getTitle(), to.getTitle())) {
+            out.writeByte(OP_TITLE);
+            StoryMapFormat.writeText(out, to.getTitle());
+            records++;
+        }
+        records += writeSlots(from == null ? null : from.getDeck(), to.getDeck(),
+                OP_DECK_SIZE, OP_DECK_SLOT, out);
+        records += writeSlots(from == null ? null : from.getMap(), to.getMap(),
+                OP_MAP_SIZE, OP_MAP_SLOT, out);
+        // The durations change on every autosave, so they are only worth
+        // writing if something else changed too.
+        if (records > 0 || from == null) {
+            out.writeByte(OP_DURATIONS);
+            StoryMapFormat.writeText(out, to.getStoryDuration());
+            StoryMapFormat.writeText(out, to.getEditorDuration());
+            records++;
+        }
+        return records;
+    }
+
+    private static int writeSlots(List<StoryState.Slot> from,
+            List<StoryState.Slot> to, byte sizeOp, byte slotOp,
+            DataOutputStream out) throws IOException {
+        int records = 0;
+        if (from == null || from.size() != to.size()) {
+            out.writeByte(sizeOp);
+            out.writeInt(to.size());
+            records++;
+        }
+        for (int i = 0; i < to.size(); i++) {
+            StoryState.Slot slot = to.get(i);
+            if (from != null && i < from.size() && from.get(i).compare(slot)) {
+                continue;
+            }
+            out.writeByte(slotOp);
+            out.writeInt(i);
+            out.writeInt(slot.getFunction());
+            StoryMapFormat.writeText(out, slot.getText());
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * Read a journal file and return the state recorded by its checkpoint and
+     * every complete batch of deltas after it.
+     */
+    static StoryState replay(File file) throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a story journal.");
+            }
+            Replay replay = new Replay();
+            StoryState committed = null;
+            try {
+                while (true) {
+                    byte op = in.readByte();
+                    if (op == OP_COMMIT) {
+                        replay.commit();
+                        committed = replay.toState();
+                    } else {
+                        replay.read(op, in);
+                    }
+                }
+            } catch (EOFException e) {
+                // The end of the journal, possibly in the middle of a batch
+                // that was never committed.
+            }
+            if (committed == null) {
+                throw new IOException("Journal does not contain a checkpoint.");
+            }
+            return committed;
+        } catch (IOException e) {
+            String detail = "IOException when replaying journal from path: " + file;
+            IOException ee = new IOException(detail, e);
+            Logger.getLogger(StoryJournal.class.getName()).throwing("StoryJournal", "replay", ee);
+            throw ee;
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * One record read from a journal, not yet applied.
+     */
+    private static final class Record {
+        private final byte op;
+        private final int index;
+        private final int number;
+        private final String text;
+        private final String text2;
+
+        Record(byte op, int index, int number, String text, String text2) {
+            this.op = op;
+            this.index = index;
+            this.number = number;
+            this.text = text;
+            this.text2 = text2;
+        }
+    }
+
+    /**
+     * The mutable state that records are applied to during a replay. The
+     * records of each batch are held back until the batch's commit marker is
+     * read, then applied together.
+     */
+    private static final class Replay {
+        private String title = "";
+        private final List<StoryState.Slot> deck = new ArrayList<StoryState.Slot>();
+        private final List<StoryState.Slot> map = new ArrayList<StoryState.Slot>();
+        private String storyDuration = "P0D";
+        private String editorDuration = "P0D";
+        private final List<Record> batch = new ArrayList<Record>();
+
+        /**
+         * Read a record of type op and add it to the current batch.
+         */
+        void read(byte op, DataInputStream in) throws IOException {
+            switch (op) {
+                case OP_TITLE:
+                    batch.add(new Record(op, 0, 0, StoryMapFormat.readText(in), null));
+                    break;
+                case OP_DECK_SIZE:
+                case OP_MAP_SIZE:
+                    batch.add(new Record(op, 0, in.readInt(), null, null));
+                    break;
+                case OP_DECK_SLOT:
+                case OP_MAP_SLOT:
+                    int index = in.readInt();
+                    int function = in.readInt();
+                    batch.add(new Record(op, index, function,
+                            StoryMapFormat.readText(in), null));
+                    break;
+                case OP_DURATIONS:
+                    String story = StoryMapFormat.readText(in);
+                    batch.add(new Record(op, 0, 0, story,
+                            StoryMapFormat.readText(in)));
+                    break;
+                default:
+                    throw new IOException("Unknown journal record type: " + op);
+            }
+        }
+
+        /**
+         * Apply the records of the current batch, which has been committed.
+         */
+        void commit() throws IOException {
+            for (Record r : batch) {
+                apply(r);
+            }
+            batch.clear();
+        }
+
+        private void apply(Record r) throws IOException {
+            switch (r.op) {
+                case OP_TITLE:
+                    title = r.text;
+                    break;
+                case OP_DECK_SIZE:
+                    resize(deck, r.number);
+                    break;
+                case OP_DECK_SLOT:
+                    setSlot(deck, r);
+                    break;
+                case OP_MAP_SIZE:
+                    resize(map, r.number);
+                    break;
+                case OP_MAP_SLOT:
+                    setSlot(map, r);
+                    break;
+                case OP_DURATIONS:
+                    storyDuration = r.text;
+                    editorDuration = r.text2;
+                    break;
+            }
+        }
+
+        private static void resize(List<StoryState.Slot> slots, int size)
+                throws IOException {
+            if (size < 0) {
+                throw new IOException("Negative slot count: " + size);
+            }
+            while (slots.size() > size) {
+                slots.remove(slots.size() - 1);
+            }
+            while (slots.size() < size) {
+                slots.add(new StoryState.Slot(-1, null));
+            }
+        }
+
+        private static void setSlot(List<StoryState.Slot> slots, Record r)
+                throws IOException {
+            if (r.index < 0 || r.index >= slots.size()) {
+                throw new IOException("Slot index out of range: " + r.index);
+            }
+            slots.set(r.index, new StoryState.Slot(r.number, r.text));
+        }
+
+        StoryState toState() {
+            return new StoryState(title, deck, map, storyDuration,
+                    editorDuration);
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -22,7 +22,10 @@ package storymaps;
 
 import DragAndDrop.*;
 import edu.umd.cs.piccolo.PNode;
+import edu.umd.cs.piccolo.event.PBasicInputEventHandler;
+import edu.umd.cs.piccolo.event.PInputEvent;
 import edu.umd.cs.piccolo.nodes.PImage;
+import edu.umd.cs.piccolo.util.PBounds;
 import java.awt.geom.Point2D;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -31,36 +34,83 @@ import java.util.List;
 import java.awt.Color;
 import java.util.logging.Logger;
 
+/**
+ * The story map that the user arranges their chosen story cards on.
+ *
+ * The story map is a grid of placeholders that grows a row at a time so
+ * that there's always a free one, however long the story. Only the rows that
+ * fit in the story map are shown at once, and the mouse wheel scrolls
+ * through the rest. The story cards on rows that are scrolled out of the
+ * story map or are outside the camera's view are taken out of the scene
+ * graph, so a long story costs no more to paint than a short one.
+ *
+ * @author seanh
+ */
 class StoryMap extends StoryBase implements DragDropObserver, Receiver,
         Originator {
         
     private ArrayList<Placeholder> placeholders = 
             new ArrayList<Placeholder>();    
     
+    private PlaceholderIndex index = new PlaceholderIndex();
+
+    /**
+     * Reused by findNearest to transform story card positions.
+     */
+    private final Point2D.Double point = new Point2D.Double();
+
     private StoryEditor editor;
 
     private static final double left_margin = 25;
     private static final double top_margin = 23;
     private static final double spacing = 9;
 
+    /**
+     * The bounds of a story card, in its own coordinate system.
+     */
+    private PBounds cardBounds;
+
+    /**
+     * The x offset of the left of the first placeholder in each row, the
+     * number of placeholders in a row and the distance from the top of one row
+     * to the top of the next.
+     */
+    private double rowLeft;
+    private int columns;
+    private double rowHeight;
+
+    /**
+     * The number of rows that fit in the story map, and the row that the
+     * story map is scrolled to.
+     */
+    private int visibleRows;
+    private int firstRow = 0;
+
+    /**
+     * The part of the scene that the camera is looking at, in global
+     * coordinates, or null if it's not known.
+     */
+    private PBounds viewBounds = null;
+
+    /**
+     * The story cards on the rows from shownFrom up to (but not including)
+     * shownTo are in the scene graph.
+     */
+    private int shownFrom = 0;
+    private int shownTo = 0;
+
+    /**
+     * The number of batches that have been begun and not yet committed, and
+     * whether the story cards have changed since the outermost one began.
+     */
+    private int batchDepth = 0;
+    private boolean changed = false;
+
     public StoryMap(StoryEditor editor, double width, double height,
             double xoffset, double yoffset, Color color) {
         super(width, height, xoffset, yoffset, color, left_margin, top_margin, spacing);
         this.editor = editor;
-
-        // Warning! Hardcoded the number of placeholders needed to completely
-        // fill the area of the story map given the current relative proportions
-        // of story card and story map.
-        //
-        // Add n placeholders to the grid node. Keep references to all these
-        // placeholders in `placeholders`.
-        int n = 18;
-        for (int i = 0; i < n; i++) {
-            Placeholder p = new Placeholder();
-            addToGrid(p.getNode());
-            placeholders.add(p);
-        }
-
+        layoutGrid(width, height);
         init();
     }
     
@@ -69,17 +119,25 @@ class StoryMap extends StoryBase implements DragDropObserver, Receiver,
             Color color) {
         super(width, height, xoffset, yoffset, color, left_margin, top_margin, spacing);
         this.editor = editor;
-        for (Placeholder p : placeholders) {
-            addToGrid(p.getNode());
-            this.placeholders.add(p);
-        }
-        for (Placeholder p : placeholders) {
-            StoryCard sc = p.getStoryCard();
-            if (sc != null) {
-                addStoryCard(sc,p);
+        layoutGrid(width, height);
+        beginBatch();
+        try {
+            for (Placeholder p : placeholders) {
+                addPlaceholder(p);
+            }
+            for (Placeholder p : placeholders) {
+                StoryCard sc = p.getStoryCard();
+                if (sc != null) {
+                    addStoryCard(sc,p);
+                }
             }
+            init();
+            // A restored story map replaces whatever the editor was showing,
+            // even if it has no story cards.
+            changed = true;
+        } finally {
+            commitBatch();
         }
-        init();
     }
     
     /**
@@ -87,7 +145,16 @@ class StoryMap extends StoryBase implements DragDropObserver, Receiver,
      * common initialisation stuff.
      */
     private void init() {
-        Messager.getMessager().accept("StoryCard single-clicked", this, null);
+        ensureFreePlaceholder();
+        scrollTo(0);
+        background.addInputEventListener(new PBasicInputEventHandler() {
+            @Override
+            public void mouseWheelRotated(PInputEvent event) {
+                scrollTo(firstRow + event.getWheelRotation());
+                event.setHandled(true);
+            }
+        });
+        Messager.getMessager().accept(Topic.STORYCARD_SINGLE_CLICKED, this, null);
         PImage image;
         try {
             image = new PImage(Util.readImageFromClassPath("/data/icons/sort.png"));
@@ -101,7 +168,7 @@ class StoryMap extends StoryBase implements DragDropObserver, Receiver,
         //sort.setScale(5);
         //this.background.addChild(sort);
         //sort.setOffset(background.getWidth(),background.getHeight());
-        Messager.getMessager().accept("button clicked", this, null);                
+        Messager.getMessager().accept(Topic.BUTTON_CLICKED, this, null);                
     }
     
     public StoryEditor getEditor() {
@@ -109,83 +176,233 @@ class StoryMap extends StoryBase implements DragDropObserver, Receiver,
     }
 
     /**
-     * Return the distance between two points.
+     * Begin a batch of changes to the story cards in this story map, e.g. a
+     * sort. Until the matching commitBatch the story editor isn't updated
+     * and placed story cards aren't put into or taken out of the scene
+     * graph. Batches can be nested, and only committing the outermost one
+     * has any effect.
      */
-    private double findDistance(double x1, double y1, double x2, double y2) {
-        // Go Pythagoras!
-        double a = (x2-x1)*(x2-x1);
-        double b = (y2-y1)*(y2-y1);
-        return Math.sqrt(a+b);
+    void beginBatch() {
+        batchDepth++;
     }
-    
+
     /**
-     * Return the offset of any pnode in global coords.
+     * Commit a batch begun by beginBatch. If it's the outermost batch and
+     * the story cards changed during it, bring the scene graph up to date
+     * with the rows that are showing, then update the story editor and send
+     * STORY_MAP_CHANGED once.
      */
-    private Point2D globalPos(PNode n) {
-        return n.localToGlobal(n.parentToLocal(n.getOffset()));
+    void commitBatch() {
+        if (batchDepth == 0) {
+            throw new IllegalStateException("No batch to commit.");
+        }
+        batchDepth--;
+        if (batchDepth > 0 || !changed) {
+            return;
+        }
+        changed = false;
+        for (int row = 0; row < getRowCount(); row++) {
+            showRow(row, row >= shownFrom && row < shownTo);
+        }
+        scrollTo(firstRow);
+        changed();
     }
-    
+
     /**
-     * Return the nearest free PlaceHolder in placeholders to the given
-     * StoryCard, or null if there are no free placeholders.
+     * Called after the story cards in this story map have changed. Update
+     * the story editor and tell any receivers, or if a batch is in progress
+     * leave that until it's committed.
      */
-    private Placeholder findNearest(StoryCard s) {
-        ArrayList<Placeholder> free_placeholders = new ArrayList<Placeholder>();
-        for (Placeholder p: placeholders) {
-            if (!p.taken()) {
-                free_placeholders.add(p);
-            }
+    private void changed() {
+        if (batchDepth > 0) {
+            changed = true;
+            return;
         }
-        if (free_placeholders.size() == 0) {
-            // There's no free placeholders.
-            return null;
+        editor.update(getStoryCards());
+        Messager.getMessager().send(Topic.STORY_MAP_CHANGED, this, this);
+    }
+
+    /**
+     * Work out the size and position of the rows of placeholders from the size
+     * of the story map and of a story card. Placeholders are laid out in
+     * centre-aligned rows the way a CentreAlignedRowsLayoutNode would lay
+     * them out, but every row has the same number of placeholders.
+     */
+    private void layoutGrid(double width, double height) {
+        cardBounds = StoryCardBase.getBounds(Function.getFunctions().get(0));
+        double cardWidth = cardBounds.getWidth();
+        double gridWidth = width - 2*left_margin;
+        double gridHeight = height - 2*top_margin;
+        // A row of n placeholders fits if n*(cardWidth+spacing) + spacing is
+        // less than gridWidth, and there's always at least one.
+        columns = Math.max(1, (int) Math.ceil(
+                (gridWidth - spacing) / (cardWidth + spacing)) - 1);
+        double rowWidth = columns*(cardWidth + spacing) + spacing;
+        rowLeft = 0.5*gridWidth - 0.5*rowWidth;
+        rowHeight = cardBounds.getHeight() + spacing;
+        // The last row may hang over into the bottom margin.
+        visibleRows = 1 + Math.max(0, (int) ((gridHeight + top_margin
+                - spacing - cardBounds.getHeight()) / rowHeight));
+    }
+
+    /**
+     * Add placeholder p to the end of the grid.
+     */
+    private void addPlaceholder(Placeholder p) {
+        int i = placeholders.size();
+        double left = rowLeft + (i % columns) * (cardBounds.getWidth() + spacing);
+        double top = spacing + (i / columns) * rowHeight;
+        p.setPosition(left - cardBounds.getX(), top - cardBounds.getY());
+        placeholders.add(p);
+        index.add(p);
+    }
+
+    /**
+     * Add rows of placeholders until there's enough to fill the story map and
+     * at least one of them is free.
+     */
+    private void ensureFreePlaceholder() {
+        while (placeholders.size() < visibleRows * columns
+                || placeholders.size() % columns != 0
+                || index.getFreeCount() == 0) {
+            addPlaceholder(new Placeholder());
         }
-        
-        // Translate the storycard's x and y offsets to global coords.        
-        Point2D p2d = globalPos(s.getNode());
-        double x1 = p2d.getX();
-        double y1 = p2d.getY();
-        
-        double nearest_distance = -1;
-        Placeholder nearest_placeholder = null;        
-        for (Placeholder p : free_placeholders) {
-            p2d = globalPos(p.getNode());
-            double x2 = p2d.getX();
-            double y2 = p2d.getY();            
-            double distance = findDistance(x1,y1,x2,y2);
-            if (nearest_distance == -1 || distance < nearest_distance) {
-                nearest_distance = distance;
-                nearest_placeholder = p;
+    }
+
+    private int getRowCount() {
+        return (placeholders.size() + columns - 1) / columns;
+    }
+
+    /**
+     * Scroll the story map so that the given row is the top one showing.
+     */
+    private void scrollTo(int row) {
+        firstRow = Math.max(0, Math.min(row, getRowCount() - visibleRows));
+        getOverlay().setOffset(left_margin, top_margin - firstRow*rowHeight);
+        showVisibleRows();
+    }
+
+    /**
+     * Tell this story map which part of the scene the camera is looking at,
+     * in global coordinates, so that it can leave out the story cards that
+     * can't be seen.
+     */
+    public void setViewBounds(PBounds viewBounds) {
+        this.viewBounds = viewBounds;
+        showVisibleRows();
+    }
+
+    /**
+     * Put the story cards on the rows that are scrolled into the story map and
+     * in the camera's view into the scene graph, and take the story cards on
+     * any other rows out of it. Only the rows that have changed are visited.
+     */
+    private void showVisibleRows() {
+        int from = firstRow;
+        int to = Math.min(firstRow + visibleRows, getRowCount());
+        if (viewBounds != null) {
+            PBounds view = new PBounds(viewBounds);
+            getOverlay().globalToLocal(view);
+            double height = cardBounds.getHeight();
+            from = Math.max(from, (int) Math.floor(
+                    (view.getMinY() - spacing - height) / rowHeight) + 1);
+            to = Math.min(to, (int) Math.ceil(
+                    (view.getMaxY() - spacing) / rowHeight));
+        }
+        to = Math.max(from, to);
+        for (int row = shownFrom; row < shownTo; row++) {
+            if (row < from || row >= to) {
+                showRow(row, false);
             }
         }
-        
-        assert nearest_placeholder != null : "findNearest did not find a placeholder, even though there are free placeholders? This shouldn't happen.";
-        
-        return nearest_placeholder;
+        for (int row = from; row < to; row++) {
+            if (row < shownFrom || row >= shownTo) {
+                showRow(row, true);
+            }
+        }
+        shownFrom = from;
+        shownTo = to;
     }
-    
+
     /**
-     * Return a StoryCard from storycards that has the same function as s, or
-     * null if no such story card exists in storycards.
+     * Add the story cards on the given row to the scene graph or remove them
+     * from it. Story cards that are being dragged are left alone.
      */
-    private StoryCard findStoryCard(StoryCard s) {
-        for (StoryCard c : getStoryCards()) {
-            if (s.getFunction().compare(c.getFunction())) {
-                return c;
+    private void showRow(int row, boolean show) {
+        int end = Math.min((row + 1) * columns, placeholders.size());
+        for (int i = row * columns; i < end; i++) {
+            StoryCard s = placeholders.get(i).getStoryCard();
+            if (s == null) {
+                continue;
+            }
+            PNode node = s.getNode();
+            if (show && node.getParent() == null) {
+                addToOverlay(node);
+            } else if (!show && node.getParent() == getOverlay()) {
+                node.removeFromParent();
             }
         }
-        return null;
     }
 
-    /** 
-     * Return a StoryCard from storycard that is the same object instance as
-     * StoryCard s, or null if no such StoryCard exists in storycards.
+    private boolean isShown(Placeholder p) {
+        int row = p.getSlot() / columns;
+        return row >= shownFrom && row < shownTo;
+    }
+
+    /**
+     * Put story card s on placeholder p, and into the scene graph if p's row
+     * is showing.
      */
-    private StoryCard findStoryCardInstance(StoryCard s) {
-        for (StoryCard c : getStoryCards()) {
-            if (s == c) { return c; }
+    private void placeStoryCard(StoryCard s, Placeholder p) {
+        s.unhighlight(); // Scale the StoryCard down, to position it properly.
+        s.getNode().setOffset(p.getX(), p.getY());
+        p.setStoryCard(s);
+        ensureFreePlaceholder();
+        if (batchDepth > 0) {
+            // commitBatch updates the scene graph for every card at once.
+            changed = true;
+            return;
+        }
+        if (isShown(p)) {
+            addToOverlay(s.getNode());
+        } else {
+            s.getNode().removeFromParent();
         }
-        return null;
+    }
+
+    /**
+     * Return the nearest free PlaceHolder in placeholders to the given
+     * StoryCard, or null if there are no free placeholders.
+     */
+    private Placeholder findNearest(StoryCard s) {
+        // Translate the storycard's offset to the coordinate system of the
+        // overlay, which the placeholders' positions are in.
+        PNode n = s.getNode();
+        point.setLocation(0, 0);
+        n.localToGlobal(point);
+        getOverlay().globalToLocal(point);
+        return index.findNearestFree(point.getX(), point.getY());
+    }
+    
+    /**
+     * Return true if this story map has a story card with the same function
+     * as s.
+     */
+    private boolean containsFunction(StoryCard s) {
+        return index.contains(s.getFunction());
+    }
+
+    /**
+     * Return true if story card s itself is on this story map, going by the
+     * placeholder it was last put on.
+     */
+    boolean contains(StoryCard s) {
+        Placeholder p = (Placeholder) s.getNode().getAttribute("Placeholder");
+        if (p == null) {
+            return false;
+        }
+        int i = p.getSlot();
+        return i < placeholders.size() && placeholders.get(i) == p;
     }
     
     /**
@@ -200,10 +417,12 @@ class StoryMap extends StoryBase implements DragDropObserver, Receiver,
             previous.clearStoryCard();
         }
         Placeholder nearest = findNearest(s);        
-        s.unhighlight(); // Scale the SotyrCard down, to position it properly.
-        addToOverlay(s.getNode());
-        s.getNode().setOffset(nearest.getNode().getOffset());
-        nearest.setStoryCard(s);
+        placeStoryCard(s, nearest);
+        // Make sure the user can see where the card went.
+        int row = nearest.getSlot() / columns;
+        if (row < firstRow || row >= firstRow + visibleRows) {
+            scrollTo(row);
+        }
     }
     
     /**
@@ -225,10 +444,7 @@ class StoryMap extends StoryBase implements DragDropObserver, Receiver,
         if (previous != null) {
             previous.clearStoryCard();
         }
-        s.unhighlight(); // Scale the StoryCard down, to position it properly.
-        addToOverlay(s.getNode());
-        s.getNode().setOffset(p.getNode().getOffset());
-        p.setStoryCard(s);                    
+        placeStoryCard(s, p);
     }
     
     /**
@@ -248,7 +464,7 @@ class StoryMap extends StoryBase implements DragDropObserver, Receiver,
     @Override
     public boolean dropped_onto(DropEvent de) {
 
-        if (placeholders.size() <= getStoryCards().size()) {
+        if (index.getFreeCount() == 0) {
             // We have no space, reject the drop.
             return false;
         }
@@ -261,14 +477,14 @@ class StoryMap extends StoryBase implements DragDropObserver, Receiver,
             return false;
         }
         
-        if (findStoryCardInstance(s) != null) {
+        if (contains(s)) {
             // This is one of our own story cards, just reposition it.
             positionStoryCard(s);
-            editor.update(getStoryCards());
+            changed();
             return true;
         }
                                     
-        if (findStoryCard(s) != null) { 
+        if (containsFunction(s)) {
             // We already have a story card like this one, reject it.
             return false;
         }
@@ -280,7 +496,7 @@ class StoryMap extends StoryBase implements DragDropObserver, Receiver,
         // story map has subscribed to the card's draggable also, and the notify
         // method below gets called for the same drop event!
         addStoryCard(s);
-        editor.update(getStoryCards());
+        changed();
         return true;
     }
                 
@@ -310,21 +526,30 @@ class StoryMap extends StoryBase implements DragDropObserver, Receiver,
     private void removeStoryCard(StoryCard s) {
         Placeholder p = (Placeholder) s.getNode().getAttribute("Placeholder");        
         p.clearStoryCard();
-        editor.update(getStoryCards());        
+        changed();
     }
         
     /**
-     * Return a list of all the StoryCards in this StoryMap.
+     * Return a new list of all the StoryCards in this StoryMap, in order.
      */
     public ArrayList<StoryCard> getStoryCards() {
-        ArrayList<StoryCard> storycards = new ArrayList<StoryCard>();
-        for (Placeholder p : placeholders) {
+        int count = index.getTakenCount();
+        ArrayList<StoryCard> storycards = new ArrayList<StoryCard>(count);
+        for (int i = 0; storycards.size() < count; i++) {
+            Placeholder p = placeholders.get(i);
             if (p.taken()) {
                 storycards.add(p.getStoryCard());
             }
         }
         return storycards;
     }
+
+    /**
+     * Return the number of StoryCards in this StoryMap.
+     */
+    int getStoryCardCount() {
+        return index.getTakenCount();
+    }
     
     public ArrayList<Placeholder> getPlaceholders() {
         return placeholders;
@@ -343,13 +568,13 @@ class StoryMap extends StoryBase implements DragDropObserver, Receiver,
      * Receive messages (from Messager) that we have subscribed to using
      * Messager.accept or Messager.acceptOnce.
      */
-    public void receive(String name, Object receiver_arg, Object sender_arg) {
-        if (name.equals("StoryCard single-clicked")) {            
+    public void receive(Topic topic, Object receiver_arg, Object sender_arg) {
+        if (topic == Topic.STORYCARD_SINGLE_CLICKED) {            
             StoryCard s = (StoryCard) sender_arg;
-            if (getStoryCards().contains(s)) {
+            if (contains(s)) {
                 focus(s);
             }
-        } else if (name.equals("button clicked")) {
+        } else if (topic == Topic.BUTTON_CLICKED) {
             if (((String)sender_arg).equals("Sort")) {
                 sort();
             }
@@ -357,32 +582,36 @@ class StoryMap extends StoryBase implements DragDropObserver, Receiver,
     }
 
     /**
-     * Sort the story cards in this story map.
+     * Sort the story cards in this story map, as a single batch.
      */
     void sort() {
-        // Get a list of all story cards currently in this story map.
-        ArrayList<StoryCard> storycards = getStoryCards();
-        
-        // Remove all story cards from the story map.
-        for (StoryCard c : storycards) {
-            removeStoryCard(c);            
-        }
-        
-        // Sort the story cards.
-        Collections.sort(storycards);
-                        
-        // Add all story cards back to the story map in sorted order.
-        for (int i = 0; i < storycards.size(); i++) {
-            addStoryCard(storycards.get(i),placeholders.get(i));     
+        beginBatch();
+        try {
+            // Get a list of all story cards currently in this story map.
+            ArrayList<StoryCard> storycards = getStoryCards();
+
+            // Remove all story cards from the story map.
+            for (StoryCard c : storycards) {
+                removeStoryCard(c);
+            }
+
+            // Sort the story cards.
+            Collections.sort(storycards);
+
+            // Add all story cards back to the story map in sorted order.
+            for (int i = 0; i < storycards.size(); i++) {
+                addStoryCard(storycards.get(i),placeholders.get(i));
+            }
+        } finally {
+            commitBatch();
         }
-                
-        editor.update(getStoryCards());
     }
     
     // Implement Originator
     // --------------------
     
     private static final class StoryMapMemento implements Memento {
+        private static final long serialVersionUID = 6155227989323879656L;
 
         // Don't need to defensively copy title as strings are immutable.
         private final String title;
@@ -465,8 +694,39 @@ class StoryMap extends StoryBase implements DragDropObserver, Receiver,
         StoryMap storyMap = new StoryMap(editor,placeholders,smm.getWidth(),
                 smm.getHeight(),smm.getXOffset(),smm.getYOffset(),
                 smm.getColor());
-        editor.update(storyMap.getStoryCards());
         editor.setTitle(title);
         return storyMap;
     }
-}
\ No newline at end of file
+
+    /**
+     * Return the title recorded in a StoryMap memento.
+     */
+    static String titleFromMemento(Memento m) throws MementoException {
+        if (!(m instanceof StoryMapMemento)) {
+            String detail = "Wrong type of memento object.";
+            MementoException e = new MementoException(detail);
+            Logger.getLogger(StoryMap.class.getName()).throwing("StoryMap", "titleFromMemento", e);
+            throw e;
+        }
+        return ((StoryMapMemento) m).getTitle();
+    }
+
+    /**
+     * Return the slots recorded in a StoryMap memento, without constructing a
+     * StoryMap or any Placeholders.
+     */
+    static List<StoryState.Slot> slotsFromMemento(Memento m)
+            throws MementoException {
+        if (!(m instanceof StoryMapMemento)) {
+            String detail = "Wrong type of memento object.";
+            MementoException e = new MementoException(detail);
+            Logger.getLogger(StoryMap.class.getName()).throwing("StoryMap", "slotsFromMemento", e);
+            throw e;
+        }
+        List<StoryState.Slot> slots = new ArrayList<StoryState.Slot>();
+        for (Memento pm : ((StoryMapMemento) m).getPlaceholderMementos()) {
+            slots.add(Placeholder.slotFromMemento(pm));
+        }
+        return slots;
+    }
+}
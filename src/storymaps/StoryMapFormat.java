@@ -0,0 +1,411 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Reads and writes the binary .storymap file format.
+ *
+ * A file starts with a header:
+ *
+ *     int    magic number, "SMAP"
+ *     short  format version
+ *     short  number of sections
+ *
+ * followed by a section table with a (short id, int length) entry for each
+ * section, followed by the sections themselves in the same order. A reader
+ * can skip any section it doesn't need or doesn't recognise without parsing
+ * it. Each known section is read only from its own length of the file, so
+ * trailing fields added to a section by a later revision are skipped, and a
+ * section whose contents run past its length is rejected. The sections are:
+ *
+ *     META  the title and the story and editor open durations
+ *     DECK  the card store: a slot count then (function, text) for each slot
+ *     MAP   the story map: a slot count then (function, text) for each slot
+ *
+ * Functions are stored only as their numbers, which refer to the catalog in
+ * functions.json. Strings are stored as an int byte length followed by that
+ * many bytes of UTF-8, with a length of -1 meaning null.
+ *
+ * Files saved by earlier versions of StoryMaps contain a Java-serialized
+ * ApplicationMemento instead. isStoryMapFormat tells the two apart and
+ * convertLegacy converts one to the other.
+ *
+ * @author seanh
+ */
+final class StoryMapFormat {
+
+    /**
+     * "SMAP", the first four bytes of every file in this format.
+     */
+    private static final int MAGIC = 0x534d4150;
+
+    /**
+     * The format version written by this class. Readers refuse files with a
+     * newer version. Additions that older readers can safely ignore should be
+     * made as new sections, not a new version.
+     */
+    private static final short VERSION = 1;
+
+    private static final short SECTION_META = 1;
+    private static final short SECTION_DECK = 2;
+    private static final short SECTION_MAP = 3;
+
+    /**
+     * The longest string, in bytes, that readText will read when it isn't
+     * bounded by a section, e.g. from an autosave journal.
+     */
+    private static final int MAX_TEXT = 16 * 1024 * 1024;
+
+    private StoryMapFormat() {
+    }
+
+    /**
+     * Write a story to a file in this format.
+     */
+    static void write(File file, StoryState state) throws IOException {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file)));
+            write(out, state);
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            String detail = "IOException when writing story to path: " + file;
+            IOException ee = new IOException(detail, e);
+            Logger.getLogger(StoryMapFormat.class.getName()).throwing("StoryMapFormat", "write", ee);
+            throw ee;
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    static void write(DataOutputStream out, StoryState state)
+            throws IOException {
+        // Each section is assembled in memory first so that its length can be
+        // written into the section table.
+        ByteArrayOutputStream meta = new ByteArrayOutputStream();
+        DataOutputStream metaOut = new DataOutputStream(meta);
+        writeText(metaOut, state.getTitle());
+        writeText(metaOut, state.getStoryDuration());
+        writeText(metaOut, state.getEditorDuration());
+        metaOut.flush();
+
+        ByteArrayOutputStream deck = slotsSection(state.getDeck());
+        ByteArrayOutputStream map = slotsSection(state.getMap());
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeShort(3);
+        out.writeShort(SECTION_META);
+        out.writeInt(meta.size());
+        out.writeShort(SECTION_DECK);
+        out.writeInt(deck.size());
+        out.writeShort(SECTION_MAP);
+        out.writeInt(map.size());
+        meta.writeTo(out);
+        deck.writeTo(out);
+        map.writeTo(out);
+        out.flush();
+    }
+
+    private static ByteArrayOutputStream slotsSection(List<StoryState.Slot> slots)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(slots.size());
+        for (StoryState.Slot slot : slots) {
+            out.writeInt(slot.getFunction());
+            writeText(out, slot.getText());
+        }
+        out.flush();
+        return bytes;
+    }
+
+    /**
+     * Read a story from a file in this format.
+     */
+    static StoryState read(File file) throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            return read(in);
+        } catch (IOException e) {
+            String detail = "IOException when reading story from path: " + file;
+            IOException ee = new IOException(detail, e);
+            Logger.getLogger(StoryMapFormat.class.getName()).throwing("StoryMapFormat", "read", ee);
+            throw ee;
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    static StoryState read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a story map file.");
+        }
+        short version = in.readShort();
+        if (version > VERSION) {
+            throw new IOException("Story map file version " + version
+                    + " is newer than the supported version " + VERSION + ".");
+        }
+        int count = in.readShort();
+        short[] ids = new short[count];
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = in.readShort();
+            lengths[i] = in.readInt();
+        }
+        String title = "";
+        String storyDuration = "P0D";
+        String editorDuration = "P0D";
+        List<StoryState.Slot> deck = new ArrayList<StoryState.Slot>();
+        List<StoryState.Slot> map = new ArrayList<StoryState.Slot>();
+        for (int i = 0; i < count; i++) {
+            if (lengths[i] < 0) {
+                throw new IOException("Negative section length: " + lengths[i]);
+            }
+            if (ids[i] != SECTION_META && ids[i] != SECTION_DECK
+                    && ids[i] != SECTION_MAP) {
+                skip(in, lengths[i]);
+                continue;
+            }
+            Section section = new Section(in, lengths[i]);
+            DataInputStream sin = new DataInputStream(section);
+            try {
+                switch (ids[i]) {
+                    case SECTION_META:
+                        title = readText(sin, section);
+                        storyDuration = readText(sin, section);
+                        editorDuration = readText(sin, section);
+                        break;
+                    case SECTION_DECK:
+                        readSlots(sin, section, deck);
+                        break;
+                    case SECTION_MAP:
+                        readSlots(sin, section, map);
+                        break;
+                }
+            } catch (EOFException e) {
+                throw new IOException("Section " + ids[i]
+                        + " runs past its length of " + lengths[i] + " bytes.", e);
+            }
+            // Skip any fields that a later revision added to the end of the
+            // section.
+            skip(in, (int) section.remaining());
+        }
+        return new StoryState(title, deck, map, storyDuration, editorDuration);
+    }
+
+    private static void readSlots(DataInputStream in, Section section,
+            List<StoryState.Slot> slots) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("Negative slot count: " + size);
+        }
+        for (int i = 0; i < size; i++) {
+            int function = in.readInt();
+            slots.add(new StoryState.Slot(function,
+                    readText(in, section)));
+        }
+    }
+
+    /**
+     * A view of the next length bytes of a stream, which ends there.
+     */
+    private static final class Section extends FilterInputStream {
+        private long remaining;
+
+        Section(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        /**
+         * Return the number of bytes of this section that haven't been read.
+         */
+        long remaining() {
+            return remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            if (skipped > 0) {
+                remaining -= skipped;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private static void skip(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            length -= skipped;
+        }
+    }
+
+    /**
+     * Return true if the file at the given path is in this format, false if
+     * it is (presumably) a legacy Java-serialized story.
+     */
+    static boolean isStoryMapFormat(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read a legacy Java-serialized story file and return its contents.
+     */
+    static StoryState readLegacy(File file) throws IOException, MementoException {
+        Object m;
+        try {
+            m = Util.deserializeObjectFromFile(file.getAbsolutePath());
+        } catch (ClassNotFoundException e) {
+            throw new IOException("ClassNotFoundException when reading legacy story file: " + file, e);
+        }
+        return Application.stateFromMemento(m);
+    }
+
+    /**
+     * Read a story file in either format and return its contents.
+     */
+    static StoryState readAny(File file) throws IOException, MementoException {
+        if (isStoryMapFormat(file)) {
+            return read(file);
+        }
+        return readLegacy(file);
+    }
+
+    /**
+     * Convert a legacy Java-serialized story file to this format, replacing it.
+     * The original file is kept with the extension .bak appended.
+     *
+     * @return false if the file was already in this format.
+     */
+    static boolean convertLegacy(File file) throws IOException, MementoException {
+        if (isStoryMapFormat(file)) {
+            return false;
+        }
+        StoryState state = readLegacy(file);
+        File tmp = new File(file.getPath() + ".tmp");
+        write(tmp, state);
+        File backup = new File(file.getPath() + ".bak");
+        if (!file.renameTo(backup)) {
+            throw new IOException("Could not rename " + file + " to " + backup);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+        return true;
+    }
+
+    /**
+     * Write a possibly null string as a length-prefixed UTF-8 blob.
+     * (DataOutputStream.writeUTF can't be used because it is limited to 64K.)
+     */
+    static void writeText(DataOutputStream out, String s)
+            throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static String readText(DataInputStream in) throws IOException {
+        return readText(in, null);
+    }
+
+    /**
+     * Read a string written by writeText, which can't be longer than the
+     * rest of the given section, or MAX_TEXT bytes if section is null.
+     */
+    private static String readText(DataInputStream in, Section section)
+            throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        long maxLength = section == null ? MAX_TEXT : section.remaining();
+        if (length > maxLength) {
+            throw new IOException("String length " + length
+                    + " is longer than the " + maxLength + " bytes left to read.");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
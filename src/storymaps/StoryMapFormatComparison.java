@@ -0,0 +1,91 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import java.io.*;
+
+/**
+ * Compares the size of legacy Java-serialized story files with the same
+ * stories in the binary StoryMapFormat, and the time taken to read each.
+ *
+ * Usage: StoryMapFormatComparison legacy.storymap [legacy2.storymap ...]
+ *
+ * The legacy files are not modified.
+ *
+ * @author seanh
+ */
+public class StoryMapFormatComparison {
+
+    private static final int ITERATIONS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        for (String path : args) {
+            byte[] legacy = readFile(new File(path));
+            StoryState state = StoryMapFormat.readLegacy(new File(path));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            StoryMapFormat.write(new DataOutputStream(bytes), state);
+            byte[] binary = bytes.toByteArray();
+
+            // Run each reader a few times before timing it, to give the JIT a
+            // chance to compile it.
+            timeLegacy(legacy);
+            timeBinary(binary);
+            long legacyNanos = timeLegacy(legacy);
+            long binaryNanos = timeBinary(binary);
+
+            System.out.println(path);
+            System.out.println("  legacy: " + legacy.length + " bytes, "
+                    + legacyNanos / ITERATIONS / 1000 + "us per read");
+            System.out.println("  binary: " + binary.length + " bytes, "
+                    + binaryNanos / ITERATIONS / 1000 + "us per read");
+        }
+    }
+
+    private static long timeLegacy(byte[] legacy) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            ObjectInputStream in = new ObjectInputStream(
+                    new ByteArrayInputStream(legacy));
+            Application.stateFromMemento(in.readObject());
+            in.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long timeBinary(byte[] binary) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            StoryMapFormat.read(new DataInputStream(
+                    new ByteArrayInputStream(binary)));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A flat, immutable description of a story: its title, which cards are in the
+ * card store, which cards are on the story map and what the user has written
+ * on each one.
+ *
+ * Unlike the memento classes a StoryState refers to functions only by number
+ * and knows nothing about the scene graph, so two states can be compared slot
+ * by slot. StoryJournal uses this to write only what changed between two
+ * autosaves.
+ *
+ * @author seanh
+ */
+final class StoryState {
+
+    /**
+     * One slot of the card store or the story map.
+     *
+     * A card store slot always has a function. It holds a story card (and so
+     * has text) only if the card has not been dragged away. A story map slot
+     * has neither a function nor text when it is empty.
+     */
+    static final class Slot {
+
+        /**
+         * The number of the function in this slot, or -1 for none.
+         */
+        private final int function;
+
+        /**
+         * The user's text for the story card in this slot, or null if the slot
+         * holds no story card.
+         */
+        private final String text;
+
+        Slot(int function, String text) {
+            this.function = function;
+            this.text = text;
+        }
+
+        int getFunction() { return function; }
+        String getText() { return text; }
+        boolean isTaken() { return text != null; }
+
+        /**
+         * Return true if obj is a slot with the same function and text.
+         */
+        boolean compare(Object obj) {
+            if (!(obj instanceof Slot)) {
+                return false;
+            }
+            Slot s = (Slot) obj;
+            if (s.function != function) {
+                return false;
+            }
+            if (text == null) {
+                return s.text == null;
+            }
+            return text.equals(s.text);
+        }
+
+        @Override
+        public String toString() {
+            return "Slot: " + function + ", " + text;
+        }
+    }
+
+    private final String title;
+    private final List<Slot> deck;
+    private final List<Slot> map;
+
+    /**
+     * How long the story and the editor have been open for, in the lexical
+     * format of javax.xml.datatype.Duration.
+     */
+    private final String storyDuration;
+    private final String editorDuration;
+
+    StoryState(String title, List<Slot> deck, List<Slot> map,
+            String storyDuration, String editorDuration) {
+        this.title = title;
+        // Slots are immutable but lists aren't, so defensively copy them.
+        this.deck = Collections.unmodifiableList(new ArrayList<Slot>(deck));
+        this.map = Collections.unmodifiableList(new ArrayList<Slot>(map));
+        this.storyDuration = storyDuration;
+        this.editorDuration = editorDuration;
+    }
+
+    String getTitle() { return title; }
+    List<Slot> getDeck() { return deck; }
+    List<Slot> getMap() { return map; }
+    String getStoryDuration() { return storyDuration; }
+    String getEditorDuration() { return editorDuration; }
+
+    @Override
+    public String toString() {
+        return "StoryState: " + title + "\n  deck: " + deck + "\n  map: " + map;
+    }
+}
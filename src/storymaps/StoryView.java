@@ -0,0 +1,103 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable snapshot of a story as it's shown when rendered: its title and
+ * the story cards on the story map, in order, each with its function and the
+ * user's text already converted to HTML.
+ *
+ * A StoryView can be made from a StoryMap (on the event dispatch thread) or
+ * from a StoryState, and rendered any number of times, from any thread.
+ *
+ * @author seanh
+ */
+final class StoryView {
+
+    /**
+     * One story card in a StoryView.
+     */
+    static final class Card {
+        private final int number;
+        private final Function function;
+        private final String textAsHTML;
+
+        Card(int number, Function function, String textAsHTML) {
+            this.number = number;
+            this.function = function;
+            this.textAsHTML = textAsHTML;
+        }
+
+        int getNumber() { return number; }
+        Function getFunction() { return function; }
+        String getTextAsHTML() { return textAsHTML; }
+    }
+
+    private final String title;
+    private final List<Card> cards;
+
+    private StoryView(String title, List<Card> cards) {
+        this.title = title;
+        this.cards = Collections.unmodifiableList(cards);
+    }
+
+    /**
+     * Return a view of the story on story map m.
+     */
+    static StoryView of(StoryMap m) {
+        List<StoryCard> storyCards = m.getStoryCards();
+        List<Card> cards = new ArrayList<Card>(storyCards.size());
+        for (StoryCard c : storyCards) {
+            cards.add(new Card(cards.size(), c.getFunction(),
+                    c.getEditor().getTextAsHTML()));
+        }
+        return new StoryView(m.getEditor().getTitle(), cards);
+    }
+
+    /**
+     * Return a view of the story in state.
+     *
+     * @throws storymaps.MementoException if the story refers to a function
+     * that doesn't exist.
+     */
+    static StoryView of(StoryState state) throws MementoException {
+        List<Card> cards = new ArrayList<Card>();
+        for (StoryState.Slot slot : state.getMap()) {
+            if (!slot.isTaken()) {
+                continue;
+            }
+            Function f = Function.forNumber(slot.getFunction());
+            if (f == null) {
+                throw new MementoException("Story refers to function "
+                        + slot.getFunction() + " which does not exist.");
+            }
+            cards.add(new Card(cards.size(), f,
+                    FunctionEditor.toHTML(slot.getText())));
+        }
+        return new StoryView(state.getTitle(), cards);
+    }
+
+    String getTitle() { return title; }
+    List<Card> getCards() { return cards; }
+}
@@ -20,6 +20,7 @@
 */
 package storymaps;
 
+import freemarker.cache.StrongCacheStorage;
 import freemarker.template.*;
 import java.io.*;
 import java.util.*;
@@ -39,10 +40,19 @@ class TemplateHandlerException extends Exception {
 /**
  * Class that handles templating via FreeMarker.
  * 
+ * The templates are bundled with the application, so each one is only
+ * parsed the first time it's used and then kept for good. The configuration
+ * isn't changed after the constructor returns, so one TemplateHandler can be
+ * used by several threads at once; normally everything uses the shared one.
+ * 
+ * Templates are rendered straight to a Writer rather than to a String.
+ * 
  * @author seanh
  */
 final class TemplateHandler {
 
+    private static final TemplateHandler shared = new TemplateHandler();
+
     /**
      * The FreeMarker configuration instance.
      */
@@ -61,16 +71,28 @@ final class TemplateHandler {
     TemplateHandler(String templateDir) {
         cfg.setClassForTemplateLoading(Util.class, templateDir);
         cfg.setObjectWrapper(new DefaultObjectWrapper());
+        // Never look for changes to the templates or drop them from the
+        // cache, and don't look for localised variants that don't exist.
+        cfg.setCacheStorage(new StrongCacheStorage());
+        cfg.setTemplateUpdateDelay(Integer.MAX_VALUE);
+        cfg.setLocalizedLookup(false);
+    }
+
+    /**
+     * Get the TemplateHandler for the default templates directory, shared by
+     * the whole application.
+     */
+    static TemplateHandler getShared() {
+        return shared;
     }
 
-    String renderMap(Map m, String template_filename) throws IOException, TemplateHandlerException {
+    void renderMap(Object m, String template_filename, Writer out) throws IOException, TemplateHandlerException {
         Template temp = null;
         try {
             temp = cfg.getTemplate(template_filename);
         } catch (IOException e) {
             throw new IOException("IOException when configuring template "+template_filename,e);
         }
-        StringWriter out = new StringWriter();
         try {
             temp.process(m,out);
         } catch (TemplateException e) {
@@ -80,51 +102,157 @@ final class TemplateHandler {
             throw new IOException("IOException when rendering template "+template_filename+" with contents "+m,e);
         }
         out.flush();
-        return out.toString();
     }
 
-    // FIXME: This method seems like it belong in the StoryMap class. Perhaps it
-    // could be combined with the Memento pattern.
     /**
-     * Render a StoryMap rendered as HTML.
+     * Render a story as HTML.
      * 
-     * @param m The StoryMap to be rendered
-     * @param files_dir The path to the directory where the story map's images
+     * @param story The story to be rendered
+     * @param filesPath The path to the directory where the story's images
      * are stored. Image URLs in the HTML will be prefixed with this string.
-     * @return The rendered StoryMap (String)
+     * @param out The Writer to write the HTML to
      */
-    String renderStoryMap(StoryMap m, String filesPath) throws IOException, TemplateHandlerException {
-        Map root = new HashMap();
-        root.put("filesPath",filesPath);
-        Map storyMap = new HashMap();
-        root.put("StoryMap", storyMap);
-        storyMap.put("title", m.getEditor().getTitle());
-        List storyCards = new ArrayList<Map>();
-        for (int i=0; i<m.getStoryCards().size(); i++) {
-            StoryCard c = m.getStoryCards().get(i);
-            Map function = new HashMap();
-            function.put("name", c.getFunction().getName());
-            function.put("description", c.getFunction().getDescription());
-            function.put("instructions", c.getFunction().getInstructions());
-            Map storyCard = new HashMap();
-            storyCard.put("number",i);
-            storyCard.put("Function",function);            
-            storyCard.put("text",c.getEditor().getTextAsHTML());
-            storyCard.put("imageFile",Util.joinClassPaths(filesPath,c.getFunction().getImageFilename()));
-            storyCards.add(storyCard);
-        }
-        storyMap.put("storyCards", storyCards);
-        return renderMap(root, "story.ftl");
+    void renderStory(StoryView story, String filesPath, Writer out) throws IOException, TemplateHandlerException {
+        renderMap(new RootModel(story, filesPath), "story.ftl", out);
     }
 
+    // The templates see a story through these read-only adapters over the
+    // StoryView, rather than through maps copied out of it. Each one is only
+    // created when the template asks for it.
+
     /**
-     * Render the list of functions using the functions.ftl template and return
-     * the result.
-     *
-     * @return The rendered functions
+     * The root of story.ftl's data model: filesPath and StoryMap.
      */
-    String renderFunctions() throws IOException, TemplateHandlerException {
-        Template temp = null;
+    private static final class RootModel implements TemplateHashModel {
+        private final StoryView story;
+        private final String filesPath;
+
+        RootModel(StoryView story, String filesPath) {
+            this.story = story;
+            this.filesPath = filesPath;
+        }
+
+        public TemplateModel get(String key) {
+            if (key.equals("filesPath")) {
+                return new SimpleScalar(filesPath);
+            } else if (key.equals("StoryMap")) {
+                return new StoryModel(story, filesPath);
+            }
+            return null;
+        }
+
+        public boolean isEmpty() {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "story \"" + story.getTitle() + "\"";
+        }
+    }
+
+    /**
+     * A story: title and storyCards.
+     */
+    private static final class StoryModel implements TemplateHashModel,
+            TemplateSequenceModel {
+        private final StoryView story;
+        private final String filesPath;
+
+        StoryModel(StoryView story, String filesPath) {
+            this.story = story;
+            this.filesPath = filesPath;
+        }
+
+        public TemplateModel get(String key) {
+            if (key.equals("title")) {
+                return new SimpleScalar(story.getTitle());
+            } else if (key.equals("storyCards")) {
+                // This model is also the sequence of story cards.
+                return this;
+            }
+            return null;
+        }
+
+        public TemplateModel get(int index) {
+            if (index < 0 || index >= story.getCards().size()) {
+                return null;
+            }
+            return new CardModel(story.getCards().get(index), filesPath);
+        }
+
+        public int size() {
+            return story.getCards().size();
+        }
+
+        public boolean isEmpty() {
+            return story.getCards().isEmpty();
+        }
+    }
+
+    /**
+     * A story card: number, Function, text and imageFile.
+     */
+    private static final class CardModel implements TemplateHashModel {
+        private final StoryView.Card card;
+        private final String filesPath;
+
+        CardModel(StoryView.Card card, String filesPath) {
+            this.card = card;
+            this.filesPath = filesPath;
+        }
+
+        public TemplateModel get(String key) {
+            if (key.equals("number")) {
+                return new SimpleNumber(card.getNumber());
+            } else if (key.equals("Function")) {
+                return new FunctionModel(card.getFunction());
+            } else if (key.equals("text")) {
+                return new SimpleScalar(card.getTextAsHTML());
+            } else if (key.equals("imageFile")) {
+                return new SimpleScalar(Util.joinClassPaths(filesPath,
+                        card.getFunction().getImageFilename()));
+            }
+            return null;
+        }
+
+        public boolean isEmpty() {
+            return false;
+        }
+    }
+
+    /**
+     * A function: number, name, description and instructions.
+     */
+    private static final class FunctionModel implements TemplateHashModel {
+        private final Function function;
+
+        FunctionModel(Function function) {
+            this.function = function;
+        }
+
+        public TemplateModel get(String key) {
+            if (key.equals("number")) {
+                return new SimpleNumber(function.getNumber());
+            } else if (key.equals("name")) {
+                return new SimpleScalar(function.getName());
+            } else if (key.equals("description")) {
+                return new SimpleScalar(function.getDescription());
+            } else if (key.equals("instructions")) {
+                return new SimpleScalar(function.getInstructions());
+            }
+            return null;
+        }
+
+        public boolean isEmpty() {
+            return false;
+        }
+    }
+
+    /**
+     * Render the list of functions using the functions.ftl template to out.
+     */
+    void renderFunctions(Writer out) throws IOException, TemplateHandlerException {
         Map root = new HashMap();
         List functions = new ArrayList();
         for (Function f : Function.getFunctions()) {
@@ -136,6 +264,6 @@ final class TemplateHandler {
             functions.add(fmap);
         }
         root.put("functions", functions);
-        return renderMap(root,"functions.ftl");
+        renderMap(root,"functions.ftl",out);
     }
 }
\ No newline at end of file
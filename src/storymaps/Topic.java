@@ -0,0 +1,133 @@
+/*
+    Copyright: (c) 2006-2012 Sean Hammond <seanhammond@seanh.cc>
+
+    This file is part of Storymaps.
+
+    Storymaps is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Storymaps is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Storymaps.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package storymaps;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The name of a kind of message sent through the Messager.
+ * 
+ * There is only ever one Topic object with a given name, so receivers can
+ * tell topics apart with ==. The topics that the application sends are
+ * constants of this class, other topics can be got with named.
+ * 
+ * Each topic holds its own subscriptions, as arrays that are replaced
+ * rather than changed when a receiver subscribes or unsubscribes, so the
+ * Messager can send a message by walking the array without locking.
+ * Subscriptions to the messages about one object are kept apart, by the
+ * object, so that a message about it only reaches its own receivers.
+ * 
+ * @author seanh
+ */
+public final class Topic {
+
+    static final Subscription[] NONE = new Subscription[0];
+
+    /**
+     * Every topic that has been created, by name.
+     */
+    private static final ConcurrentHashMap<String,Topic> topics =
+            new ConcurrentHashMap<String,Topic>();
+
+    public static final Topic BUTTON_CLICKED = named("button clicked");
+    public static final Topic DRAG_STARTED = named("drag started");
+    public static final Topic EDITOR_COLLAPSED = named("Editor collapsed");
+    public static final Topic EDITOR_UNCOLLAPSED = named("Editor uncollapsed");
+    public static final Topic REPOSITION_CAMERA = named("reposition camera");
+    public static final Topic SORT = named("sort");
+    public static final Topic STORYCARD_CLICKED = named("StoryCard clicked");
+    public static final Topic STORYCARD_SINGLE_CLICKED = named("StoryCard single-clicked");
+    public static final Topic STORYCARD_DOUBLE_CLICKED = named("StoryCard double-clicked");
+    public static final Topic STORY_MAP_CHANGED = named("story map changed");
+
+    private final String name;
+
+    /**
+     * The subscriptions made with Messager.accept. Only replaced while
+     * holding this topic's lock.
+     */
+    volatile Subscription[] subscriptions = NONE;
+
+    /**
+     * The subscriptions made with Messager.accept for a key, by key. Only
+     * changed while holding this topic's lock.
+     */
+    final ConcurrentMap<SubscriptionKey,Subscription[]> keyedSubscriptions =
+            new ConcurrentHashMap<SubscriptionKey,Subscription[]>();
+
+    /**
+     * The subscriptions made with Messager.acceptOnce, taken all at once by
+     * the next send.
+     */
+    final AtomicReference<Subscription[]> oneTimeSubscriptions =
+            new AtomicReference<Subscription[]>(NONE);
+
+    /**
+     * The number of messages sent to this topic.
+     */
+    final AtomicLong sent = new AtomicLong();
+
+    private Topic(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Return the topic with the given name, creating it if it doesn't exist.
+     */
+    public static Topic named(String name) {
+        Topic t = topics.get(name);
+        if (t == null) {
+            Topic created = new Topic(name);
+            t = topics.putIfAbsent(name, created);
+            if (t == null) {
+                t = created;
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Return every topic that has been created so far.
+     */
+    static Collection<Topic> all() {
+        return new ArrayList<Topic>(topics.values());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Return the number of messages that have been sent to this topic.
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
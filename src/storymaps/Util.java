@@ -169,6 +169,22 @@ public class Util {
         }        
     }
     
+    /**
+     * Open a text file at a canonical and absolute system path for writing,
+     * with the same encoding as writeTextToFile. The caller must close the
+     * returned Writer.
+     */
+    public static Writer openTextFile(String absolutePath) throws IOException {
+        try {
+            return new BufferedWriter(new FileWriter(absolutePath));
+        } catch (IOException e) {
+            String detail = "IOException when opening text file at path: "+absolutePath;
+            IOException ee = new IOException(detail,e);
+            Logger.getLogger(Util.class.getName()).throwing("Util", "openTextFile", ee);
+            throw ee;
+        }
+    }
+
     /**
      * Use the Java ClassLoader to read in an image file from a resource path
      * and return the image as a Piccolo PImage object.
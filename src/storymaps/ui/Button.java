@@ -20,6 +20,7 @@
 */
 package storymaps.ui;
 import storymaps.Messager;
+import storymaps.Topic;
 
 import edu.umd.cs.piccolo.PNode;
 import edu.umd.cs.piccolo.event.PBasicInputEventHandler;
@@ -121,7 +122,7 @@ public class Button extends PNode {
     }
     
     protected void clicked() {
-        Messager.getMessager().send("button clicked",name);
+        Messager.getMessager().send(Topic.BUTTON_CLICKED,name);
     }
 
     public String getName() {